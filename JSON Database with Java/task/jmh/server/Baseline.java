@@ -0,0 +1,126 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The request paths of the server before the document was kept in memory, copied from the first
+ * version so the benchmarks can measure the current paths against them. That version read the whole
+ * document from its file for every request and wrote it back for every change; here reading it is
+ * stood in for by a deep copy and writing it by serializing it to a string, so no file is touched.
+ */
+final class Baseline {
+
+    private Baseline() {
+    }
+
+    static JsonObject parseRequest(String input) {
+        return JsonParser.parseString(input).getAsJsonObject();
+    }
+
+    /**
+     * Turns the response into text the way the first version did: values were put in the map as the
+     * text of their JSON, which Gson escaped as strings and the regexes unescaped again.
+     */
+    static String toResponse(Map<String, String> outputMap) {
+        return fixJsonOutput(new Gson().toJson(outputMap));
+    }
+
+    /**
+     * Returns the text the first version answered a get with, or null for a missing key.
+     */
+    static String get(JsonObject document, JsonArray keyArray) {
+        JsonObject database = document.deepCopy();
+        JsonObject temp = database;
+        int lastIndex = keyArray.size() - 1;
+        for (int i = 0; i < keyArray.size(); i++) {
+            JsonElement k = keyArray.get(i);
+            JsonElement valuePlaceholder = temp.get(k.getAsString());
+            if (valuePlaceholder == null) {
+                return null;
+            }
+            if (valuePlaceholder.isJsonPrimitive()) {
+                if (i == lastIndex) {
+                    return valuePlaceholder.getAsJsonPrimitive().getAsString();
+                }
+            } else {
+                temp = temp.getAsJsonObject(k.getAsString());
+            }
+        }
+        return Objects.equals(temp, database) ? null : temp.toString();
+    }
+
+    /**
+     * Sets the value at the path by merging an object of placeholders leading to it into the document.
+     */
+    static String set(JsonObject document, JsonArray keyArray, JsonElement value) {
+        JsonObject newData = new JsonObject();
+        JsonObject placeholder = new JsonObject();
+        int lastIndex = keyArray.size() - 1;
+        for (int i = lastIndex; i > 0; i--) {
+            JsonElement currentKey = keyArray.get(i);
+            if (i == lastIndex) {
+                placeholder.add(currentKey.getAsString(), value);
+            } else {
+                JsonObject tempObject = new JsonObject();
+                tempObject.add(currentKey.getAsString(), placeholder);
+                placeholder = tempObject;
+            }
+        }
+        newData.add(keyArray.get(0).getAsString(), placeholder);
+        JsonObject map = document.deepCopy();
+        mergeJsonObjects(map, newData);
+        return new Gson().toJson(map);
+    }
+
+    /**
+     * Deletes the primitive at the path, returning the document written back or null when there was none.
+     */
+    static String delete(JsonObject document, JsonArray keyArray) {
+        JsonObject database = document.deepCopy();
+        JsonObject temp = database;
+        int lastIndex = keyArray.size() - 1;
+        for (int i = 0; i < keyArray.size(); i++) {
+            JsonElement k = keyArray.get(i);
+            JsonElement valuePlaceholder = temp.get(k.getAsString());
+            if (valuePlaceholder == null) {
+                return null;
+            }
+            if (valuePlaceholder.isJsonPrimitive()) {
+                if (i == lastIndex) {
+                    return temp.remove(k.getAsString()) != null ? new Gson().toJson(database) : null;
+                }
+            } else {
+                temp = temp.getAsJsonObject(k.getAsString());
+            }
+        }
+        return null;
+    }
+
+    private static void mergeJsonObjects(JsonObject jsonObject1, JsonObject jsonObject2) {
+        for (String key : jsonObject2.keySet()) {
+            if (jsonObject2.get(key).isJsonObject() && jsonObject1.has(key) && jsonObject1.get(key).isJsonObject()) {
+                mergeJsonObjects(jsonObject1.getAsJsonObject(key), jsonObject2.getAsJsonObject(key));
+            } else {
+                jsonObject1.add(key, jsonObject2.get(key));
+            }
+        }
+    }
+
+    private static String fixJsonOutput(String s) {
+        Matcher matcher = Pattern.compile("\\\\").matcher(s);
+        String afterRegex1 = matcher.replaceAll("");
+        matcher = Pattern.compile("\"\\{").matcher(afterRegex1);
+        String afterRegex2 = matcher.replaceAll("{");
+        matcher = Pattern.compile("}\"").matcher(afterRegex2);
+        return matcher.replaceAll("}");
+    }
+}
@@ -0,0 +1,134 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the changes and lookups of a document in isolation, without the log or any locking.
+ * The document holds a single top-level key whose value nests objects depth levels deep, each
+ * level holding width members, and the paths used lead down to the deepest level. Every benchmark
+ * has a baseline counterpart running the same change or lookup the way the first version of the
+ * server did, on a document of its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentBenchmark {
+
+    @Param({"10", "1000"})
+    public int width;
+
+    @Param({"1", "4", "8"})
+    public int depth;
+
+    private PersistentMap<String, JsonValue> document;
+
+    private JsonArray leafPath;
+
+    private JsonArray objectPath;
+
+    private JsonArray placeholderPath;
+
+    private JsonObject baselineDocument;
+
+    private JsonValue leaf;
+
+    private JsonValue patch;
+
+    @Setup
+    public void setUp() {
+        JsonObject root = new JsonObject();
+        JsonObject level = root;
+        leafPath = pathOf("document");
+        for (int i = 0; i < depth; i++) {
+            for (int j = 0; j < width; j++) {
+                level.addProperty("member" + j, "value" + j);
+            }
+            if (i < depth - 1) {
+                JsonObject nested = new JsonObject();
+                level.add("nested", nested);
+                level = nested;
+                leafPath.add("nested");
+            }
+        }
+        objectPath = leafPath.deepCopy();
+        leafPath.add("member0");
+        placeholderPath = objectPath.deepCopy();
+        for (int i = 0; i < depth; i++) {
+            placeholderPath.add("missing" + i);
+        }
+        document = PersistentMap.<String, JsonValue>empty().put("document", JsonValue.parsed(root));
+        baselineDocument = new JsonObject();
+        baselineDocument.add("document", root.deepCopy());
+        leaf = JsonValue.parsed(new JsonPrimitive("changed"));
+        JsonObject members = new JsonObject();
+        members.addProperty("member0", "merged");
+        members.addProperty("added", "merged");
+        patch = JsonValue.parsed(members);
+        Database.find(document, leafPath);
+    }
+
+    @Benchmark
+    public JsonElement getNested() {
+        return Database.find(document, leafPath);
+    }
+
+    @Benchmark
+    public PersistentMap<String, JsonValue> setLeaf() {
+        return Database.applySet(document, leafPath, leaf);
+    }
+
+    @Benchmark
+    public PersistentMap<String, JsonValue> setWithPlaceholders() {
+        return Database.applySet(document, placeholderPath, leaf);
+    }
+
+    @Benchmark
+    public PersistentMap<String, JsonValue> mergeObject() {
+        return Database.applySet(document, objectPath, patch);
+    }
+
+    @Benchmark
+    public PersistentMap<String, JsonValue> deleteLeaf() {
+        return Database.applyDelete(document, leafPath);
+    }
+
+    @Benchmark
+    public String baselineGetNested() {
+        return Baseline.get(baselineDocument, leafPath);
+    }
+
+    @Benchmark
+    public String baselineSetLeaf() {
+        return Baseline.set(baselineDocument, leafPath, leaf.get());
+    }
+
+    @Benchmark
+    public String baselineSetWithPlaceholders() {
+        return Baseline.set(baselineDocument, placeholderPath, leaf.get());
+    }
+
+    @Benchmark
+    public String baselineMergeObject() {
+        return Baseline.set(baselineDocument, objectPath, patch.get());
+    }
+
+    @Benchmark
+    public String baselineDeleteLeaf() {
+        return Baseline.delete(baselineDocument, leafPath);
+    }
+
+    private static JsonArray pathOf(String topKey) {
+        JsonArray path = new JsonArray();
+        path.add(topKey);
+        return path;
+    }
+}
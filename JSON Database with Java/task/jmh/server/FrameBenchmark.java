@@ -0,0 +1,90 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the decoding of a set request and the encoding of a get response carrying the same
+ * value, an object of width members nesting objects depth levels deep, against the parsing and
+ * the Gson and regex round trip the first version of the server did instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+    @Param({"10", "1000"})
+    public int width;
+
+    @Param({"1", "4", "8"})
+    public int depth;
+
+    private byte[] request;
+
+    private JsonObject response;
+
+    private JsonObject value;
+
+    @Setup
+    public void setUp() {
+        value = new JsonObject();
+        JsonObject level = value;
+        for (int i = 0; i < depth; i++) {
+            for (int j = 0; j < width; j++) {
+                level.addProperty("member" + j, "value" + j);
+            }
+            if (i < depth - 1) {
+                JsonObject nested = new JsonObject();
+                level.add("nested", nested);
+                level = nested;
+            }
+        }
+        JsonArray key = new JsonArray();
+        key.add("document");
+        key.add("nested");
+        JsonObject set = new JsonObject();
+        set.addProperty("type", "set");
+        set.add("key", key);
+        set.add("value", value);
+        set.addProperty("id", 1);
+        request = set.toString().getBytes(StandardCharsets.UTF_8);
+        response = new JsonObject();
+        response.addProperty("response", "OK");
+        response.add("value", value);
+        response.addProperty("id", 1);
+    }
+
+    @Benchmark
+    public Request decodeRequest() {
+        return Request.decode(request, 0, request.length);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeResponse() throws IOException {
+        return Frames.encode(response);
+    }
+
+    @Benchmark
+    public JsonObject baselineDecodeRequest() {
+        return Baseline.parseRequest(new String(request, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public byte[] baselineEncodeResponse() {
+        Map<String, String> outputMap = new LinkedHashMap<>();
+        outputMap.put("response", "OK");
+        outputMap.put("value", value.toString());
+        return Baseline.toResponse(outputMap).getBytes(StandardCharsets.UTF_8);
+    }
+}
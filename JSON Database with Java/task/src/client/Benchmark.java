@@ -0,0 +1,280 @@
+package client;
+
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the server with a fixed number of concurrent callers, each sending its next request as soon
+ * as the previous one is answered, for a given time, and reports the throughput and the latency
+ * percentiles and the failures of every type of request. Requests go through a {@link DatabaseClient}, so they share
+ * its pooled connections the way a service using it would.
+ * <p>
+ * Every key of the key space is set once before the run, so the gets find values. Keys are picked
+ * uniformly at random; with a depth above one, requests address an element that many levels down.
+ */
+class Benchmark {
+
+    private static final String[] TYPES = {"get", "set", "delete"};
+
+    private final String address;
+
+    private final int port;
+
+    private final int concurrency;
+
+    private final int duration;
+
+    private final int[] mix;
+
+    private final int keys;
+
+    private final int depth;
+
+    private final JsonPrimitive value;
+
+    private final int poolSize;
+
+    Benchmark(InputArguments inputArguments) {
+        this.address = inputArguments.getAddress();
+        this.port = inputArguments.getPort();
+        this.concurrency = inputArguments.getConcurrency();
+        this.duration = inputArguments.getDuration();
+        this.mix = mixOf(inputArguments.getMix());
+        this.keys = inputArguments.getKeys();
+        this.depth = inputArguments.getDepth();
+        this.value = new JsonPrimitive("x".repeat(inputArguments.getValueSize()));
+        this.poolSize = inputArguments.getConnections();
+        if (concurrency < 1 || duration < 1 || keys < 1 || depth < 1 || poolSize < 1) {
+            throw new IllegalArgumentException("The concurrency, duration, keys, depth and connections must be positive");
+        }
+    }
+
+    void run() throws InterruptedException {
+        System.out.printf("Benchmark of %s:%d: %d callers over %d connections for %d s, get/set/delete mix %d:%d:%d, "
+                        + "%d keys of depth %d, values of %d bytes\n", address, port, concurrency, poolSize, duration,
+                mix[0], mix[1], mix[2], keys, depth, value.getAsString().length());
+        try (DatabaseClient client = DatabaseClient.connect(address, port, poolSize)) {
+            preload(client);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+            List<Caller> callers = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                Caller caller = new Caller(client, deadline);
+                callers.add(caller);
+                caller.start();
+            }
+            LatencyHistogram[] histograms = new LatencyHistogram[TYPES.length];
+            long[] errors = new long[TYPES.length];
+            for (int i = 0; i < TYPES.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            for (Caller caller : callers) {
+                caller.join();
+                for (int i = 0; i < TYPES.length; i++) {
+                    histograms[i].add(caller.histograms[i]);
+                    errors[i] += caller.errors[i];
+                }
+            }
+            report(histograms, errors);
+        }
+    }
+
+    private void preload(DatabaseClient client) {
+        List<CompletableFuture<Void>> sets = new ArrayList<>();
+        for (int i = 0; i < keys; i++) {
+            sets.add(client.set(pathOf(i), value));
+            if (sets.size() == Constants.MAX_IN_FLIGHT) {
+                CompletableFuture.allOf(sets.toArray(new CompletableFuture<?>[0])).join();
+                sets.clear();
+            }
+        }
+        CompletableFuture.allOf(sets.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void report(LatencyHistogram[] histograms, long[] errors) {
+        LatencyHistogram total = new LatencyHistogram();
+        long totalErrors = 0;
+        for (int i = 0; i < TYPES.length; i++) {
+            print(TYPES[i], histograms[i], errors[i]);
+            total.add(histograms[i]);
+            totalErrors += errors[i];
+        }
+        print("total", total, totalErrors);
+    }
+
+    private void print(String type, LatencyHistogram histogram, long errors) {
+        if (histogram.getCount() == 0 && errors == 0) {
+            return;
+        }
+        System.out.printf("%-6s %10d ops %12.1f ops/s %8d errors   mean %8d us   p50 %8d us   p99 %8d us   "
+                        + "p999 %8d us   max %8d us\n",
+                type, histogram.getCount(), histogram.getCount() / (double) duration, errors,
+                histogram.getMean() / 1000, histogram.percentile(50) / 1000, histogram.percentile(99) / 1000,
+                histogram.percentile(99.9) / 1000, histogram.getMax() / 1000);
+    }
+
+    private List<String> pathOf(int key) {
+        List<String> path = new ArrayList<>(depth);
+        path.add("key" + key);
+        for (int i = 1; i < depth; i++) {
+            path.add("level" + i);
+        }
+        return path;
+    }
+
+    /**
+     * Parses a mix such as 80:15:5 into the weights of gets, sets and deletes.
+     */
+    private static int[] mixOf(String mix) {
+        String[] parts = mix.split(":");
+        if (parts.length != TYPES.length) {
+            throw new IllegalArgumentException("The mix must give the weights of gets, sets and deletes, such as 80:15:5");
+        }
+        int[] weights = new int[TYPES.length];
+        int sum = 0;
+        for (int i = 0; i < TYPES.length; i++) {
+            weights[i] = Integer.parseInt(parts[i].trim());
+            if (weights[i] < 0) {
+                throw new IllegalArgumentException("The weights of the mix must not be negative");
+            }
+            sum += weights[i];
+        }
+        if (sum == 0) {
+            throw new IllegalArgumentException("The weights of the mix must not all be zero");
+        }
+        return weights;
+    }
+
+    /**
+     * One caller of the run, sending a request of a random type for a random key at a time.
+     */
+    private class Caller extends Thread {
+
+        private final DatabaseClient client;
+
+        private final long deadline;
+
+        private final LatencyHistogram[] histograms = new LatencyHistogram[TYPES.length];
+
+        private final long[] errors = new long[TYPES.length];
+
+        Caller(DatabaseClient client, long deadline) {
+            super("benchmark");
+            this.client = client;
+            this.deadline = deadline;
+            for (int i = 0; i < TYPES.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int sum = mix[0] + mix[1] + mix[2];
+            long start;
+            while ((start = System.nanoTime()) < deadline) {
+                int pick = random.nextInt(sum);
+                int type = pick < mix[0] ? 0 : pick < mix[0] + mix[1] ? 1 : 2;
+                List<String> path = pathOf(random.nextInt(keys));
+                try {
+                    switch (type) {
+                        case 0 -> client.get(path).join();
+                        case 1 -> client.set(path, value).join();
+                        default -> client.delete(path).join();
+                    }
+                    histograms[type].record(System.nanoTime() - start);
+                } catch (RuntimeException e) {
+                    errors[type]++;
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Counts latencies in buckets growing with the latency, 32 of them for every power of two, so every
+ * percentile is exact to within about 3% whatever the range of the latencies.
+ * <p>
+ * The buckets and the percentiles are the same as those of the histograms of the server, so the latencies
+ * the benchmark reports compare with those of the stats request, both in microseconds. The server records
+ * to its histograms from many threads at once and keeps them in atomic counters; every caller here records
+ * to histograms of its own, merged once the run is over, so plain counters do and can be added up. The
+ * client does not depend on the server either, so it keeps a copy of the bucketing rather than sharing it.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+
+    private long count = 0;
+
+    private long sum = 0;
+
+    private long max = 0;
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMean() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the highest latency of the bucket holding the given percentile of the latencies.
+     */
+    long percentile(double percentile) {
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(max, highestOf(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the bucket of the value: values below 64 have a bucket each, and a value of more bits
+     * shares its bucket with the values agreeing with it on the six highest bits.
+     */
+    private static int indexOf(long value) {
+        int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1);
+        return magnitude * SUB_BUCKETS + (int) (value >>> magnitude);
+    }
+
+    private static long highestOf(int index) {
+        int magnitude = Math.max(0, index / SUB_BUCKETS - 1);
+        long top = index - (long) magnitude * SUB_BUCKETS;
+        return ((top + 1) << magnitude) - 1;
+    }
+}
@@ -0,0 +1,406 @@
+package client;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A client of the database for other programs, which keeps a pool of connections open and shares
+ * them between all calls. Every request is sent with an id right away, without waiting for the
+ * responses to the requests before it, and its future is completed by the response echoing that id,
+ * so concurrent calls are pipelined over the same connections.
+ * <p>
+ * All calls on the same top-level key go over the same connection, picked by the hash of the key, and a
+ * batch goes over the one of its first key. The server answers the requests of one connection as if they
+ * came one by one, so a get of a key sent after a set of it reads that set even before its future has
+ * completed. Calls on different top-level keys may go over different connections, so one is only sure
+ * to see another once the future of the other has completed. Calls without a key take turns.
+ * <p>
+ * Keys are given either as a single top-level key or as the path of segments to an element below it.
+ * A response with an error completes the future exceptionally with a {@link DatabaseException}, except
+ * for a missing key, which gets and deletes answer as null and false. A broken connection fails the
+ * requests waiting on it with an {@link IOException} and is opened again by the next call.
+ */
+public class DatabaseClient implements Closeable {
+
+    private final String address;
+
+    private final int port;
+
+    private final AtomicReferenceArray<Connection> connections;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final AtomicLong ids = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    private DatabaseClient(String address, int port, int poolSize) {
+        this.address = address;
+        this.port = port;
+        this.connections = new AtomicReferenceArray<>(poolSize);
+    }
+
+    public static DatabaseClient connect() {
+        return connect(Constants.ADDRESS, Constants.PORT, Constants.POOL_SIZE);
+    }
+
+    /**
+     * Creates a client of the server at the address and port holding at most poolSize connections,
+     * each one opened by the first call using it.
+     */
+    public static DatabaseClient connect(String address, int port, int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("The pool needs at least one connection");
+        }
+        return new DatabaseClient(address, port, poolSize);
+    }
+
+    /**
+     * Gets the value of the top-level key, or null when there is no such key.
+     */
+    public CompletableFuture<JsonElement> get(String key) {
+        return get(new JsonPrimitive(key));
+    }
+
+    /**
+     * Gets the element at the path, or null when there is no such element.
+     */
+    public CompletableFuture<JsonElement> get(List<String> path) {
+        return get(pathOf(path));
+    }
+
+    public CompletableFuture<Void> set(String key, JsonElement value) {
+        return set(new JsonPrimitive(key), value);
+    }
+
+    public CompletableFuture<Void> set(List<String> path, JsonElement value) {
+        return set(pathOf(path), value);
+    }
+
+    /**
+     * Deletes the top-level key, completing with false when there was no such key.
+     */
+    public CompletableFuture<Boolean> delete(String key) {
+        return delete(new JsonPrimitive(key));
+    }
+
+    public CompletableFuture<Boolean> delete(List<String> path) {
+        return delete(pathOf(path));
+    }
+
+    /**
+     * Runs the requests of the batch atomically, completing with their responses in the order of the requests.
+     */
+    public CompletableFuture<List<JsonObject>> batch(Batch batch) {
+        JsonObject request = requestOf("batch", null);
+        request.add("requests", batch.requests.deepCopy());
+        return send(request).thenApply(response -> {
+            List<JsonObject> responses = new ArrayList<>();
+            for (JsonElement element : response.getAsJsonArray("value")) {
+                responses.add(element.getAsJsonObject());
+            }
+            return responses;
+        });
+    }
+
+    /**
+     * Sends a request as it is and completes with its response once it is a success.
+     */
+    public CompletableFuture<JsonObject> send(JsonObject request) {
+        CompletableFuture<JsonObject> sent = sendRaw(request);
+        return sent.thenApply(response -> {
+            if (!"OK".equals(stringOf(response, "response"))) {
+                throw new DatabaseException(stringOf(response, "reason"));
+            }
+            return response;
+        });
+    }
+
+    /**
+     * Closes every connection, failing the requests still waiting for their responses.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (int i = 0; i < connections.length(); i++) {
+            Connection connection = connections.getAndSet(i, null);
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private CompletableFuture<JsonElement> get(JsonElement key) {
+        return sendRaw(requestOf("get", key)).thenApply(response -> {
+            if ("OK".equals(stringOf(response, "response"))) {
+                return response.get("value");
+            } else if (Constants.REASON_NO_KEY.equals(stringOf(response, "reason"))) {
+                return null;
+            }
+            throw new DatabaseException(stringOf(response, "reason"));
+        });
+    }
+
+    private CompletableFuture<Void> set(JsonElement key, JsonElement value) {
+        JsonObject request = requestOf("set", key);
+        request.add("value", value);
+        return send(request).thenApply(response -> null);
+    }
+
+    private CompletableFuture<Boolean> delete(JsonElement key) {
+        return sendRaw(requestOf("delete", key)).thenApply(response -> {
+            if ("OK".equals(stringOf(response, "response"))) {
+                return true;
+            } else if (Constants.REASON_NO_KEY.equals(stringOf(response, "reason"))) {
+                return false;
+            }
+            throw new DatabaseException(stringOf(response, "reason"));
+        });
+    }
+
+    private CompletableFuture<JsonObject> sendRaw(JsonObject request) {
+        JsonObject identified = request.deepCopy();
+        long id = ids.incrementAndGet();
+        identified.addProperty("id", id);
+        try {
+            return connection(slotOf(request)).send(id, identified);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Returns the slot of the pool the request goes over: the one of its top-level key, the one of the
+     * first key of a batch, or the next one in turn for a request without a key.
+     */
+    private int slotOf(JsonObject request) {
+        JsonElement key = request.get("key");
+        JsonElement requests = request.get("requests");
+        if (key == null && requests != null && requests.isJsonArray() && requests.getAsJsonArray().size() > 0
+                && requests.getAsJsonArray().get(0).isJsonObject()) {
+            key = requests.getAsJsonArray().get(0).getAsJsonObject().get("key");
+        }
+        if (key != null && key.isJsonArray() && key.getAsJsonArray().size() > 0) {
+            key = key.getAsJsonArray().get(0);
+        }
+        if (key == null || !key.isJsonPrimitive()) {
+            return Math.floorMod(next.getAndIncrement(), connections.length());
+        }
+        int hash = key.getAsString().hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), connections.length());
+    }
+
+    /**
+     * Returns the connection in the slot of the pool, opening it first if it is not open.
+     */
+    private Connection connection(int slot) throws IOException {
+        Connection connection = connections.get(slot);
+        if (connection != null && connection.isOpen()) {
+            return connection;
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The client is closed");
+            }
+            connection = connections.get(slot);
+            if (connection == null || !connection.isOpen()) {
+                connection = new Connection(address, port);
+                connections.set(slot, connection);
+            }
+            return connection;
+        }
+    }
+
+    private static JsonObject requestOf(String type, JsonElement key) {
+        JsonObject request = new JsonObject();
+        request.addProperty("type", type);
+        if (key != null) {
+            request.add("key", key);
+        }
+        return request;
+    }
+
+    private static JsonArray pathOf(List<String> path) {
+        JsonArray array = new JsonArray();
+        for (String segment : path) {
+            array.add(segment);
+        }
+        return array;
+    }
+
+    private static String stringOf(JsonObject response, String member) {
+        JsonElement element = response.get(member);
+        return element != null && element.isJsonPrimitive() ? element.getAsString() : null;
+    }
+
+    /**
+     * The requests of a batch, added in the order they are to run in.
+     */
+    public static class Batch {
+
+        private final JsonArray requests = new JsonArray();
+
+        public Batch get(String key) {
+            requests.add(requestOf("get", new JsonPrimitive(key)));
+            return this;
+        }
+
+        public Batch get(List<String> path) {
+            requests.add(requestOf("get", pathOf(path)));
+            return this;
+        }
+
+        public Batch set(String key, JsonElement value) {
+            return set(new JsonPrimitive(key), value);
+        }
+
+        public Batch set(List<String> path, JsonElement value) {
+            return set(pathOf(path), value);
+        }
+
+        public Batch delete(String key) {
+            requests.add(requestOf("delete", new JsonPrimitive(key)));
+            return this;
+        }
+
+        public Batch delete(List<String> path) {
+            requests.add(requestOf("delete", pathOf(path)));
+            return this;
+        }
+
+        private Batch set(JsonElement key, JsonElement value) {
+            JsonObject request = requestOf("set", key);
+            request.add("value", value);
+            requests.add(request);
+            return this;
+        }
+    }
+}
+
+/**
+ * One connection of a {@link DatabaseClient}. Callers write their requests under the lock of the
+ * output stream, while a reader thread of its own completes the future of every response it reads.
+ * <p>
+ * At most {@link Constants#MAX_IN_FLIGHT} requests wait for their responses at once, as many as the
+ * server reads ahead on a connection; a caller sending more waits until responses come in. Only the
+ * reader threads never wait, as code run by the futures they complete may send requests of its own,
+ * and a reader waiting for responses would never read them.
+ */
+class Connection implements Closeable {
+
+    private static final ThreadLocal<Boolean> READER = ThreadLocal.withInitial(() -> false);
+
+    private final Socket socket;
+
+    private final DataOutputStream dataOutputStream;
+
+    private final DataInputStream dataInputStream;
+
+    private final Map<Long, CompletableFuture<JsonObject>> pending = new ConcurrentHashMap<>();
+
+    private final Semaphore inFlight = new Semaphore(Constants.MAX_IN_FLIGHT);
+
+    private volatile boolean open = true;
+
+    Connection(String address, int port) throws IOException {
+        socket = new Socket(InetAddress.getByName(address), port);
+        socket.setTcpNoDelay(true);
+        dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Thread reader = new Thread(this::read, "client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    CompletableFuture<JsonObject> send(long id, JsonObject request) {
+        CompletableFuture<JsonObject> response = new CompletableFuture<>();
+        boolean permitted;
+        if (READER.get()) {
+            permitted = inFlight.tryAcquire();
+        } else {
+            try {
+                inFlight.acquire();
+                permitted = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response.completeExceptionally(new InterruptedIOException("Interrupted while waiting to send"));
+                return response;
+            }
+        }
+        if (permitted) {
+            response.whenComplete((ignored, throwable) -> inFlight.release());
+        }
+        pending.put(id, response);
+        if (!open) {
+            pending.remove(id);
+            response.completeExceptionally(new IOException("The connection is closed"));
+            return response;
+        }
+        try {
+            synchronized (dataOutputStream) {
+                Main.writeFrame(dataOutputStream, request.toString());
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return response;
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("The connection is closed"));
+    }
+
+    private void read() {
+        READER.set(true);
+        try {
+            while (open) {
+                JsonObject response = JsonParser.parseString(Main.readFrame(dataInputStream)).getAsJsonObject();
+                JsonElement id = response.remove("id");
+                CompletableFuture<JsonObject> waiting = id != null ? pending.remove(id.getAsLong()) : null;
+                if (waiting != null) {
+                    waiting.complete(response);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    /**
+     * Closes the connection and fails every request still waiting for its response.
+     */
+    private void fail(IOException cause) {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        for (Long id : pending.keySet()) {
+            CompletableFuture<JsonObject> waiting = pending.remove(id);
+            if (waiting != null) {
+                waiting.completeExceptionally(cause);
+            }
+        }
+    }
+}
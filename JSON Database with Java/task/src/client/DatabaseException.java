@@ -0,0 +1,11 @@
+package client;
+
+/**
+ * An error response of the server to a request of a {@link DatabaseClient}, carrying the reason it gave.
+ */
+public class DatabaseException extends RuntimeException {
+
+    public DatabaseException(String reason) {
+        super(reason);
+    }
+}
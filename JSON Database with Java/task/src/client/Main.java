@@ -7,8 +7,10 @@ import com.google.gson.Gson;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.LinkedHashMap;
@@ -22,15 +24,41 @@ class Constants {
     final static int PORT = 22222;
 
     final static String PATH_TO_DATA = "./src/client/data/";
+
+    final static int POOL_SIZE = 4;
+
+    final static String REASON_NO_KEY = "No such key";
+
+    final static int MAX_IN_FLIGHT = 256;
+
+    final static int BENCHMARK_CONCURRENCY = 16;
+
+    final static int BENCHMARK_DURATION = 10;
+
+    final static String BENCHMARK_MIX = "80:15:5";
+
+    final static int BENCHMARK_KEYS = 10000;
+
+    final static int BENCHMARK_VALUE_SIZE = 100;
+
+    final static int BENCHMARK_DEPTH = 1;
 }
 
 public class Main {
 
     private static InputArguments inputArguments;
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         initialise(args);
-        runClient();
+        if (inputArguments.getBenchmark()) {
+            try {
+                new Benchmark(inputArguments).run();
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+            }
+        } else {
+            runClient();
+        }
     }
 
     private static void initialise(String[] args) {
@@ -41,7 +69,7 @@ public class Main {
 
     private static void runClient() {
         try (
-                Socket socket = new Socket(InetAddress.getByName(Constants.ADDRESS), Constants.PORT);
+                Socket socket = new Socket(InetAddress.getByName(inputArguments.getAddress()), inputArguments.getPort());
                 DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
                 DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
                 ) {
@@ -51,19 +79,41 @@ public class Main {
                 socket.close();
                 return;
             }
-            dataOutputStream.writeUTF(message);
+            writeFrame(dataOutputStream, message);
             System.out.printf("Sent: %s\n", message);
-            String input = dataInputStream.readUTF();
+            String input = readFrame(dataInputStream);
             System.out.printf("Received: %s\n", input);
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Sends the message as a four byte length followed by its UTF-8 encoding, the framing the server expects.
+     */
+    static void writeFrame(DataOutputStream dataOutputStream, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        dataOutputStream.writeInt(body.length);
+        dataOutputStream.write(body);
+        dataOutputStream.flush();
+    }
+
+    static String readFrame(DataInputStream dataInputStream) throws IOException {
+        byte[] body = new byte[dataInputStream.readInt()];
+        dataInputStream.readFully(body);
+        return new String(body, StandardCharsets.UTF_8);
+    }
 }
 
 class InputArguments {
 
+    @Parameter(names = {"-address"}, description = "Address of the server")
+    private String address = Constants.ADDRESS;
+
+    @Parameter(names = {"-port"}, description = "Port of the server")
+    private int port = Constants.PORT;
+
     @Parameter(names = {"-t"}, description = "Type of a request")
     private String type;
 
@@ -76,6 +126,30 @@ class InputArguments {
     @Parameter(names = {"-in"}, description = "Name of the request input file")
     private String  fileName = null;
 
+    @Parameter(names = {"-benchmark"}, description = "Drive the server with load and report the throughput and latencies instead of sending a request")
+    private boolean benchmark = false;
+
+    @Parameter(names = {"-concurrency"}, description = "Benchmark: number of callers sending requests at once")
+    private int concurrency = Constants.BENCHMARK_CONCURRENCY;
+
+    @Parameter(names = {"-duration"}, description = "Benchmark: seconds to run for")
+    private int duration = Constants.BENCHMARK_DURATION;
+
+    @Parameter(names = {"-mix"}, description = "Benchmark: weights of gets, sets and deletes, such as 80:15:5")
+    private String mix = Constants.BENCHMARK_MIX;
+
+    @Parameter(names = {"-keys"}, description = "Benchmark: number of distinct top-level keys")
+    private int keys = Constants.BENCHMARK_KEYS;
+
+    @Parameter(names = {"-valueSize"}, description = "Benchmark: bytes of every value set")
+    private int valueSize = Constants.BENCHMARK_VALUE_SIZE;
+
+    @Parameter(names = {"-depth"}, description = "Benchmark: number of segments of every key path")
+    private int depth = Constants.BENCHMARK_DEPTH;
+
+    @Parameter(names = {"-connections"}, description = "Benchmark: number of pooled connections the callers share")
+    private int connections = Constants.POOL_SIZE;
+
     public InputArguments(String[] args) {
         JCommander.newBuilder()
                 .addObject(this)
@@ -83,10 +157,50 @@ class InputArguments {
                 .parse(args);
     }
 
+    public String getAddress() {
+        return this.address;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public boolean getBenchmark() {
+        return this.benchmark;
+    }
+
+    public int getConcurrency() {
+        return this.concurrency;
+    }
+
+    public int getDuration() {
+        return this.duration;
+    }
+
+    public String getMix() {
+        return this.mix;
+    }
+
+    public int getKeys() {
+        return this.keys;
+    }
+
+    public int getValueSize() {
+        return this.valueSize;
+    }
+
+    public int getDepth() {
+        return this.depth;
+    }
+
+    public int getConnections() {
+        return this.connections;
+    }
+
     public String parseIntoJson() {
         if (!Objects.equals(fileName, null)) {
             try {
-                return new String(Files.readAllBytes(Paths.get(Constants.PATH_TO_DATA + fileName)));
+                return new String(Files.readAllBytes(Paths.get(Constants.PATH_TO_DATA + fileName)), StandardCharsets.UTF_8);
             } catch (Exception e) {
                 e.printStackTrace();
                 return null;
@@ -106,7 +220,7 @@ class InputArguments {
                     map.put("key", key);
                     yield gson.toJson(map);
                 }
-                case "exit" -> {
+                case "exit", "stats", "slowlog" -> {
                     map.put("type", type);
                     yield gson.toJson(map);
                 }
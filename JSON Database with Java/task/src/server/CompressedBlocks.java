@@ -0,0 +1,231 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of data on disk in blocks deflated on their own, so any block can be inflated without
+ * the ones before it. The keys of the stored objects repeat from value to value, which is what makes
+ * the blocks compress well.
+ */
+class CompressedBlocks {
+
+    /**
+     * Starts a file of compressed blocks; no JSON document starts with these bytes.
+     */
+    static final byte[] MAGIC = {'J', 'D', 'B', 'Z'};
+
+    private static final int LEVEL = Deflater.BEST_SPEED;
+
+    /**
+     * The most deflate can shrink data by, which bounds the inflated length a block may claim.
+     */
+    private static final int MAX_RATIO = 1032;
+
+    private CompressedBlocks() {
+    }
+
+    static byte[] deflate(byte[] bytes, int offset, int length) {
+        Deflater deflater = new Deflater(LEVEL);
+        try {
+            deflater.setInput(bytes, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(length / 4 + 64);
+            byte[] buffer = new byte[Constants.READ_BUFFER_SIZE];
+            while (!deflater.finished()) {
+                outputStream.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return outputStream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the most the given number of bytes can take once deflated, as zlib bounds it.
+     */
+    static int maxDeflatedLength(int length) {
+        return length + ((length + 7) >> 3) + ((length + 63) >> 6) + 11;
+    }
+
+    /**
+     * Inflates a block, checking the lengths read from disk along with it before allocating anything.
+     */
+    static byte[] inflate(byte[] bytes, int offset, int length, int inflatedLength) throws IOException {
+        if (inflatedLength < 0 || length < 0 || length > maxDeflatedLength(inflatedLength)
+                || inflatedLength > (long) length * MAX_RATIO) {
+            throw new IOException("A compressed block is corrupt");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset, length);
+            byte[] inflated = new byte[inflatedLength];
+            int position = 0;
+            while (position < inflatedLength && !inflater.finished()) {
+                int count = inflater.inflate(inflated, position, inflatedLength - position);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                position += count;
+            }
+            if (position != inflatedLength || !inflater.finished()) {
+                throw new IOException("A compressed block is corrupt");
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new IOException("A compressed block is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Tells whether the stream, which must support marks, holds compressed blocks, leaving it where it was.
+     */
+    static boolean isCompressed(InputStream inputStream) throws IOException {
+        inputStream.mark(MAGIC.length);
+        byte[] magic = inputStream.readNBytes(MAGIC.length);
+        inputStream.reset();
+        return Arrays.equals(magic, MAGIC);
+    }
+}
+
+/**
+ * Writes what it is given as compressed blocks of {@link Constants#COMPRESSED_BLOCK_SIZE} bytes each,
+ * every block framed by its inflated and deflated lengths, after the magic of compressed files.
+ */
+class BlockOutputStream extends OutputStream {
+
+    private final OutputStream outputStream;
+
+    private final byte[] block = new byte[Constants.COMPRESSED_BLOCK_SIZE];
+
+    private int position = 0;
+
+    BlockOutputStream(OutputStream outputStream) throws IOException {
+        this.outputStream = outputStream;
+        outputStream.write(CompressedBlocks.MAGIC);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (position == block.length) {
+            writeBlock();
+        }
+        block[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (position == block.length) {
+                writeBlock();
+            }
+            int count = Math.min(length, block.length - position);
+            System.arraycopy(bytes, offset, block, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Writes the block started so far, so flushing too often makes the blocks smaller.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (position > 0) {
+            writeBlock();
+        }
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (outputStream) {
+            flush();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        byte[] deflated = CompressedBlocks.deflate(block, 0, position);
+        outputStream.write(ByteBuffer.allocate(8).putInt(position).putInt(deflated.length).array());
+        outputStream.write(deflated);
+        position = 0;
+    }
+}
+
+/**
+ * Reads back what a {@link BlockOutputStream} wrote, inflating a block at a time.
+ */
+class BlockInputStream extends InputStream {
+
+    private final DataInputStream inputStream;
+
+    private byte[] block = new byte[0];
+
+    private int position = 0;
+
+    BlockInputStream(InputStream inputStream) throws IOException {
+        this.inputStream = new DataInputStream(inputStream);
+        byte[] magic = new byte[CompressedBlocks.MAGIC.length];
+        this.inputStream.readFully(magic);
+        if (!Arrays.equals(magic, CompressedBlocks.MAGIC)) {
+            throw new IOException("Not a file of compressed blocks");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == block.length && !readBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == block.length && !readBlock()) {
+            return -1;
+        }
+        int count = Math.min(length, block.length - position);
+        System.arraycopy(block, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+    /**
+     * Reads and inflates the next block, returning false at the end of the stream. The writer never writes
+     * an empty block, so one is corrupt as well; reading it would leave nothing to return from the block.
+     */
+    private boolean readBlock() throws IOException {
+        int inflatedLength;
+        try {
+            inflatedLength = inputStream.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        int deflatedLength = inputStream.readInt();
+        if (inflatedLength < 1 || inflatedLength > Constants.COMPRESSED_BLOCK_SIZE
+                || deflatedLength < 0 || deflatedLength > CompressedBlocks.maxDeflatedLength(Constants.COMPRESSED_BLOCK_SIZE)) {
+            throw new IOException("A compressed block is corrupt");
+        }
+        byte[] deflated = new byte[deflatedLength];
+        inputStream.readFully(deflated);
+        block = CompressedBlocks.inflate(deflated, 0, deflated.length, inflatedLength);
+        position = 0;
+        return true;
+    }
+}
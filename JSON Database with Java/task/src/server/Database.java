@@ -0,0 +1,796 @@
+package server;
+
+import com.google.gson.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The whole database kept resident in memory. The document is loaded once at startup and
+ * every get is answered from memory. Sets and deletes append a record to the {@link WriteAheadLog}
+ * and change the document only once the record is durable, so readers never see a change that would
+ * not survive a crash and a change whose record failed is dropped rather than answered with an error
+ * while staying visible.
+ * <p>
+ * The document is never changed in place. Its top-level keys live in a {@link PersistentMap} and
+ * a writer copies the objects on the path to the element it changes, then publishes a new root
+ * with a single atomic swap. Readers just take the current root and never lock, while the elements
+ * they get stay valid however long they are used.
+ * <p>
+ * Writers of the same top-level key are serialized by a fixed set of striped locks, so writers of
+ * different top-level keys run in parallel. A request only ever changes the subtree under its own
+ * top-level key, which is why records of different stripes may reach the log in any order. Whatever
+ * needs several stripes at once takes them in ascending order, so two of them cannot deadlock.
+ * <p>
+ * The {@link SecondaryIndex secondary indexes} declared at startup are updated around the swap of
+ * every change, which lets a find look up the top-level keys by an element below them without a scan.
+ * The top-level keys are also kept in order in a skip list maintained the same way, so a scan of
+ * a prefix or a range of keys only walks the keys it returns.
+ * <p>
+ * The decoded form of the values may be bounded by a {@link ValueCache}, which is told about every
+ * value a change publishes and every value it replaces.
+ * <p>
+ * The time writers wait for their stripes and for their log records to be durable is recorded in
+ * the {@link Metrics} of the server, under the type of the request and under snapshot for snapshots.
+ */
+class Database {
+
+    private final AtomicReference<PersistentMap<String, JsonValue>> root;
+
+    private final WriteAheadLog writeAheadLog;
+
+    private final StorageEngine storage;
+
+    private final ExecutorService storageExecutor;
+
+    private final Lock[] stripes = new Lock[Constants.LOCK_STRIPES];
+
+    private final List<SecondaryIndex> indexes;
+
+    private final NavigableSet<String> sortedKeys = new ConcurrentSkipListSet<>();
+
+    private final ValueCache cache;
+
+    private final Metrics metrics;
+
+    private final AtomicBoolean recovering = new AtomicBoolean();
+
+    private long snapshotLsn;
+
+    private Database(AtomicReference<PersistentMap<String, JsonValue>> root, WriteAheadLog writeAheadLog,
+                     StorageEngine storage, ExecutorService storageExecutor, long snapshotLsn,
+                     List<SecondaryIndex> indexes, ValueCache cache, Metrics metrics) {
+        this.root = root;
+        this.writeAheadLog = writeAheadLog;
+        this.storage = storage;
+        this.storageExecutor = storageExecutor;
+        this.snapshotLsn = snapshotLsn;
+        this.indexes = indexes;
+        this.cache = cache;
+        this.metrics = metrics;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        root.get().forEach((topKey, value) -> sortedKeys.add(topKey));
+    }
+
+    /**
+     * Recovers the database from the latest checkpoint in the directory, falling back to the seed file
+     * when there is none yet, and replays only the log records written after that checkpoint. The checkpoint
+     * is taken from whichever storage engine wrote the newest one, while new ones are written by the engine
+     * of the given name. The shards of the log are read in parallel. Each of the index paths, such as
+     * {@code car.model}, is then indexed over the recovered document. The values decoded meanwhile are
+     * handed to a cache keeping at most the given number of their stored bytes decoded, if not zero.
+     */
+    static Database open(String directory, String seedFile, String storageName, List<String> indexPaths,
+                         long cacheSize, Metrics metrics) throws IOException {
+        ValueCache cache = new ValueCache(cacheSize);
+        JsonValue.useCache(cache);
+        ExecutorService storageExecutor = Executors.newFixedThreadPool(Constants.SHARDS, runnable -> {
+            Thread thread = new Thread(runnable, "storage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, StorageEngine> engines = StorageEngine.createAll(Path.of(directory), Constants.SHARDS, storageExecutor);
+        StorageEngine storage = engines.get(storageName);
+        if (!checkIfNotNull(storage)) {
+            throw new IllegalArgumentException("Unknown storage engine: " + storageName);
+        }
+        StorageEngine newest = storage;
+        long newestLsn = storage.latestLsn();
+        for (StorageEngine engine : engines.values()) {
+            long lsn = engine.latestLsn();
+            if (lsn > newestLsn) {
+                newest = engine;
+                newestLsn = lsn;
+            }
+        }
+        StorageEngine.Snapshot snapshot;
+        if (newestLsn == StorageEngine.NO_CHECKPOINT) {
+            PersistentMap<String, JsonValue> seed = PersistentMap.empty();
+            for (Map.Entry<String, JsonElement> entry : new DocumentFile(Path.of(seedFile)).load().entrySet()) {
+                seed = seed.put(entry.getKey(), JsonValue.parsed(entry.getValue()));
+            }
+            snapshot = new StorageEngine.Snapshot(0, seed);
+        } else {
+            snapshot = newest.load();
+        }
+        for (StorageEngine engine : engines.values()) {
+            if (engine != storage) {
+                engine.close();
+            }
+        }
+        PersistentMap<String, JsonValue> document = snapshot.getDocument();
+        AtomicReference<PersistentMap<String, JsonValue>> root = new AtomicReference<>(document);
+        AtomicLong replayedLsn = new AtomicLong(snapshot.getLsn());
+        WriteAheadLog writeAheadLog = WriteAheadLog.open(Path.of(directory), snapshot.getLsn(), Constants.SHARDS,
+                storageExecutor, (lsn, payload) -> {
+                    root.set(replay(root.get(), Request.decode(payload, 0, payload.length)));
+                    replayedLsn.set(lsn);
+                });
+        List<SecondaryIndex> indexes = new ArrayList<>();
+        for (String indexPath : indexPaths) {
+            SecondaryIndex index = new SecondaryIndex(Arrays.asList(indexPath.split("\\.")));
+            root.get().forEach((topKey, value) -> {
+                JsonElement element = index.elementOf(value);
+                if (checkIfNotNull(element)) {
+                    index.add(topKey, element);
+                }
+            });
+            indexes.add(index);
+        }
+        root.get().forEach((topKey, value) -> cache.admit(value));
+        Database database = new Database(root, writeAheadLog, storage, storageExecutor, snapshot.getLsn(), indexes,
+                cache, metrics);
+        if (replayedLsn.get() < writeAheadLog.getLastLsn()) {
+            // a crash left records of some shards behind a gap in the others; they were not replayed
+            // and must not be on the next start either, after the records that will follow them
+            database.snapshot();
+        }
+        return database;
+    }
+
+    /**
+     * Returns the element stored under the key, or null when there is no such key.
+     * The element is shared with the document and must not be changed.
+     */
+    JsonElement get(JsonElement key) {
+        return isValidKey(key) ? find(root.get(), key) : null;
+    }
+
+    /**
+     * Finds the top-level keys holding the element at the path through the index declared on it and
+     * answers with an object of those keys and their values, or with no value when there is no such index.
+     */
+    Result find(JsonElement path, JsonElement element) {
+        if (!isValidKey(path) || !checkIfNotNull(element)) {
+            return new Result(Constants.ILLEGAL, null);
+        }
+        List<String> segments = new ArrayList<>();
+        for (JsonElement segment : pathOf(path)) {
+            segments.add(segment.getAsString());
+        }
+        for (SecondaryIndex index : indexes) {
+            if (index.getPath().equals(segments)) {
+                PersistentMap<String, JsonValue> document = root.get();
+                JsonObject found = new JsonObject();
+                for (String topKey : index.candidatesOf(element)) {
+                    JsonValue value = document.get(topKey);
+                    if (checkIfNotNull(value) && element.equals(index.elementOf(value))) {
+                        found.add(topKey, value.get());
+                    }
+                }
+                return new Result(Constants.POSITIVE, found);
+            }
+        }
+        return new Result(Constants.NEGATIVE, null);
+    }
+
+    /**
+     * Returns the next page of at most limit top-level keys, in order, which start with the prefix or
+     * lie from the inclusive lower to the exclusive upper bound, together with their values. Any of
+     * them may be null. The page continues after the cursor, the last key of the previous page, when
+     * there is one. Returns null when one of the arguments is malformed.
+     */
+    Page scan(JsonElement prefix, JsonElement from, JsonElement to, JsonElement limit, JsonElement cursor) {
+        if (!isValidBound(prefix) || !isValidBound(from) || !isValidBound(to) || !isValidBound(cursor)
+                || (checkIfNotNull(limit) && (!limit.isJsonPrimitive() || !limit.getAsJsonPrimitive().isNumber()))) {
+            return null;
+        }
+        int size = checkIfNotNull(limit) ? limit.getAsInt() : Constants.SCAN_LIMIT;
+        if (size < 1 || size > Constants.MAX_SCAN_LIMIT) {
+            return null;
+        }
+        String lower = checkIfNotNull(prefix) ? prefix.getAsString() : "";
+        if (checkIfNotNull(from) && from.getAsString().compareTo(lower) > 0) {
+            lower = from.getAsString();
+        }
+        NavigableSet<String> keys = sortedKeys.tailSet(lower, true);
+        if (checkIfNotNull(cursor) && cursor.getAsString().compareTo(lower) >= 0) {
+            keys = sortedKeys.tailSet(cursor.getAsString(), false);
+        }
+        PersistentMap<String, JsonValue> document = root.get();
+        JsonObject found = new JsonObject();
+        String last = null;
+        for (String topKey : keys) {
+            if ((checkIfNotNull(prefix) && !topKey.startsWith(prefix.getAsString()))
+                    || (checkIfNotNull(to) && topKey.compareTo(to.getAsString()) >= 0)) {
+                return new Page(found, null);
+            }
+            JsonValue value = document.get(topKey);
+            if (!checkIfNotNull(value)) {
+                continue;
+            }
+            if (found.size() == size) {
+                return new Page(found, last);
+            }
+            found.add(topKey, value.get());
+            last = topKey;
+        }
+        return new Page(found, null);
+    }
+
+    int set(JsonElement key, JsonValue value) {
+        if (!isValidKey(key) || !checkIfNotNull(value)) {
+            return Constants.NEGATIVE;
+        }
+        String topKey = topKeyOf(key);
+        Lock writerLock = stripeOf(topKey);
+        lock(writerLock, Constants.TYPE_SET);
+        try {
+            PersistentMap<String, JsonValue> changed = applySet(root.get(), key, value);
+            int code = awaitDurable(writeAheadLog.append(shardOf(topKey, Constants.SHARDS), createSetRecord(key, value)),
+                    Constants.TYPE_SET);
+            if (code == Constants.POSITIVE) {
+                publish(Collections.singleton(topKey), changed);
+            }
+            return code;
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    int delete(JsonElement key) {
+        if (!isValidKey(key)) {
+            return Constants.ILLEGAL;
+        }
+        String topKey = topKeyOf(key);
+        Lock writerLock = stripeOf(topKey);
+        lock(writerLock, Constants.TYPE_DELETE);
+        try {
+            PersistentMap<String, JsonValue> changed = applyDelete(root.get(), key);
+            if (!checkIfNotNull(changed)) {
+                return Constants.NEGATIVE;
+            }
+            int code = awaitDurable(writeAheadLog.append(shardOf(topKey, Constants.SHARDS),
+                    createRecord(Constants.TYPE_DELETE, key, null)), Constants.TYPE_DELETE);
+            if (code == Constants.POSITIVE) {
+                publish(Collections.singleton(topKey), changed);
+            }
+            return code;
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * Applies the get, set and delete requests of a batch in order to a private version of the document
+     * while holding the stripes of all their keys and logs its changes as one record, so they become durable
+     * together with a single flush. Once they are, all of them are published with one swap.
+     * Returns null without applying anything when one of the requests is malformed.
+     */
+    List<Result> batch(JsonArray requests) {
+        SortedSet<Integer> stripeIndexes = new TreeSet<>();
+        Set<String> topKeys = new HashSet<>();
+        for (JsonElement request : requests) {
+            if (!isValidBatchRequest(request)) {
+                return null;
+            }
+            String topKey = topKeyOf(request.getAsJsonObject().get("key"));
+            topKeys.add(topKey);
+            stripeIndexes.add(stripeIndexOf(topKey));
+        }
+        List<Result> results = new ArrayList<>(requests.size());
+        JsonArray changes = new JsonArray();
+        List<Lock> writerLocks = lockStripes(stripeIndexes, Constants.TYPE_BATCH);
+        try {
+            PersistentMap<String, JsonValue> version = root.get();
+            for (JsonElement element : requests) {
+                JsonObject request = element.getAsJsonObject();
+                String type = request.get("type").getAsString();
+                JsonElement key = request.get("key");
+                JsonElement value = request.get("value");
+                switch (type) {
+                    case Constants.TYPE_GET:
+                        value = find(version, key);
+                        results.add(new Result(checkIfNotNull(value) ? Constants.POSITIVE : Constants.NEGATIVE, value));
+                        break;
+                    case Constants.TYPE_SET:
+                        version = applySet(version, key, JsonValue.parsed(value));
+                        results.add(new Result(Constants.POSITIVE, null));
+                        changes.add(createRecord(type, key, value));
+                        break;
+                    case Constants.TYPE_DELETE:
+                        PersistentMap<String, JsonValue> changed = applyDelete(version, key);
+                        if (checkIfNotNull(changed)) {
+                            version = changed;
+                            results.add(new Result(Constants.POSITIVE, null));
+                            changes.add(createRecord(type, key, null));
+                        } else {
+                            results.add(new Result(Constants.NEGATIVE, null));
+                        }
+                        break;
+                }
+            }
+            if (changes.size() > 0) {
+                JsonObject record = new JsonObject();
+                record.addProperty("type", Constants.TYPE_BATCH);
+                record.add(Constants.REQUESTS, changes);
+                if (awaitDurable(writeAheadLog.append(shardOf(topKeys.iterator().next(), Constants.SHARDS), record),
+                        Constants.TYPE_BATCH) == Constants.POSITIVE) {
+                    publish(topKeys, version);
+                } else {
+                    for (int i = 0; i < results.size(); i++) {
+                        if (!Constants.TYPE_GET.equals(requests.get(i).getAsJsonObject().get("type").getAsString())) {
+                            results.set(i, new Result(Constants.ERROR, null));
+                        }
+                    }
+                }
+            }
+        } finally {
+            unlockStripes(writerLocks);
+        }
+        return results;
+    }
+
+    /**
+     * Writes a point-in-time snapshot of the document and drops the log segments it covers.
+     * All stripes are only held to take the current root together with the lsn it is exact at;
+     * the root never changes, so it is saved without any lock and without copying it first.
+     */
+    synchronized void snapshot() throws IOException {
+        PersistentMap<String, JsonValue> version;
+        long lsn;
+        SortedSet<Integer> stripeIndexes = new TreeSet<>();
+        for (int i = 0; i < stripes.length; i++) {
+            stripeIndexes.add(i);
+        }
+        List<Lock> writerLocks = lockStripes(stripeIndexes, Metrics.TYPE_SNAPSHOT);
+        try {
+            if (writeAheadLog.getLastLsn() == snapshotLsn) {
+                return;
+            }
+            lsn = writeAheadLog.rollOver();
+            version = root.get();
+        } finally {
+            unlockStripes(writerLocks);
+        }
+        long persisting = System.nanoTime();
+        storage.write(lsn, version);
+        writeAheadLog.truncate(lsn);
+        snapshotLsn = lsn;
+        metrics.record(Metrics.TYPE_SNAPSHOT, Metrics.Stage.PERSIST, System.nanoTime() - persisting);
+    }
+
+    ValueCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Takes a last snapshot, so the next start has no log to replay, and closes the log.
+     */
+    void close() throws IOException {
+        try {
+            snapshot();
+        } finally {
+            writeAheadLog.close();
+            storage.close();
+            storageExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Swaps in a root holding the elements of the top-level keys from the changed version. The caller
+     * holds the stripes of those keys; the other keys may be changed by other writers meanwhile,
+     * which is why the elements are moved over instead of publishing the changed version itself.
+     * The secondary indexes and the sorted keys get the new elements before the swap and lose
+     * the replaced ones after it, when the cache also learns about both.
+     */
+    private void publish(Set<String> topKeys, PersistentMap<String, JsonValue> changed) {
+        PersistentMap<String, JsonValue> previous = root.get();
+        for (String topKey : topKeys) {
+            if (checkIfNotNull(changed.get(topKey))) {
+                sortedKeys.add(topKey);
+            }
+        }
+        for (SecondaryIndex index : indexes) {
+            for (String topKey : topKeys) {
+                JsonValue value = changed.get(topKey);
+                JsonElement element = checkIfNotNull(value) ? index.elementOf(value) : null;
+                if (checkIfNotNull(element)) {
+                    index.add(topKey, element);
+                }
+            }
+        }
+        root.updateAndGet(current -> {
+            for (String topKey : topKeys) {
+                JsonValue value = changed.get(topKey);
+                current = checkIfNotNull(value) ? current.put(topKey, value) : current.remove(topKey);
+            }
+            return current;
+        });
+        for (String topKey : topKeys) {
+            if (!checkIfNotNull(changed.get(topKey))) {
+                sortedKeys.remove(topKey);
+            }
+        }
+        for (String topKey : topKeys) {
+            JsonValue replaced = previous.get(topKey);
+            JsonValue value = changed.get(topKey);
+            if (checkIfNotNull(replaced) && replaced != value) {
+                cache.invalidate(replaced);
+            }
+            if (checkIfNotNull(value)) {
+                cache.admit(value);
+            }
+        }
+        for (SecondaryIndex index : indexes) {
+            for (String topKey : topKeys) {
+                JsonValue replaced = previous.get(topKey);
+                JsonValue value = changed.get(topKey);
+                JsonElement element = checkIfNotNull(replaced) ? index.elementOf(replaced) : null;
+                if (checkIfNotNull(element) && !element.equals(checkIfNotNull(value) ? index.elementOf(value) : null)) {
+                    index.remove(topKey, element);
+                }
+            }
+        }
+    }
+
+    private Lock stripeOf(String topKey) {
+        return stripes[stripeIndexOf(topKey)];
+    }
+
+    private int stripeIndexOf(String topKey) {
+        return shardOf(topKey, stripes.length);
+    }
+
+    /**
+     * Spreads the top-level keys over a power of two of stripes, log shards or snapshot shards.
+     */
+    static int shardOf(String topKey, int shards) {
+        int hash = topKey.hashCode();
+        return (hash ^ (hash >>> 16)) & (shards - 1);
+    }
+
+    /**
+     * Locks the stripes in ascending order, which every caller holding more than one stripe follows.
+     */
+    private List<Lock> lockStripes(SortedSet<Integer> stripeIndexes, String type) {
+        long waiting = System.nanoTime();
+        List<Lock> writerLocks = new ArrayList<>(stripeIndexes.size());
+        for (int index : stripeIndexes) {
+            stripes[index].lock();
+            writerLocks.add(stripes[index]);
+        }
+        metrics.record(type, Metrics.Stage.LOCK, System.nanoTime() - waiting);
+        return writerLocks;
+    }
+
+    private void lock(Lock writerLock, String type) {
+        long waiting = System.nanoTime();
+        writerLock.lock();
+        metrics.record(type, Metrics.Stage.LOCK, System.nanoTime() - waiting);
+    }
+
+    private static void unlockStripes(List<Lock> writerLocks) {
+        for (int i = writerLocks.size() - 1; i >= 0; i--) {
+            writerLocks.get(i).unlock();
+        }
+    }
+
+    /**
+     * Applies a record read back from the write-ahead log while the database is being opened.
+     */
+    private static PersistentMap<String, JsonValue> replay(PersistentMap<String, JsonValue> document, Request record) {
+        switch (record.get("type").getAsString()) {
+            case Constants.TYPE_SET:
+                return applySet(document, record.get("key"), record.getValue());
+            case Constants.TYPE_DELETE:
+                PersistentMap<String, JsonValue> changed = applyDelete(document, record.get("key"));
+                return checkIfNotNull(changed) ? changed : document;
+            case Constants.TYPE_BATCH:
+                for (JsonElement request : record.get(Constants.REQUESTS).getAsJsonArray()) {
+                    document = replay(document, Request.of(request.getAsJsonObject()));
+                }
+                return document;
+            default:
+                return document;
+        }
+    }
+
+    private static JsonObject createRecord(String type, JsonElement key, JsonElement value) {
+        JsonObject record = new JsonObject();
+        record.addProperty("type", type);
+        record.add("key", key);
+        if (checkIfNotNull(value)) {
+            record.add("value", value);
+        }
+        return record;
+    }
+
+    /**
+     * Serializes the record of a set by copying the bytes of the value, which are usually still
+     * the ones it was received as, instead of building and serializing a record object.
+     */
+    private static byte[] createSetRecord(JsonElement key, JsonValue value) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        byte[] head = ("{\"type\":\"" + Constants.TYPE_SET + "\",\"key\":" + key + ",\"value\":")
+                .getBytes(StandardCharsets.UTF_8);
+        record.write(head, 0, head.length);
+        value.writeTo(record);
+        record.write('}');
+        return record.toByteArray();
+    }
+
+    /**
+     * Waits until the log record is on disk while the writer still holds its stripes, so nothing else
+     * changes its keys before it publishes. Writers of other stripes keep appending meanwhile and their
+     * records share the flush, so only writers of the same stripe wait for each other's flushes.
+     */
+    private int awaitDurable(CompletableFuture<Void> durable, String type) {
+        long waiting = System.nanoTime();
+        try {
+            durable.join();
+            return Constants.POSITIVE;
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace();
+            recoverLog();
+            return Constants.ERROR;
+        } finally {
+            metrics.record(type, Metrics.Stage.PERSIST, System.nanoTime() - waiting);
+        }
+    }
+
+    /**
+     * Takes a snapshot in the background once a log record failed, as the log takes no records until
+     * a checkpoint covers the failed one. A snapshot failing as well is left to the periodic ones,
+     * which report it, and the next failed record tries again.
+     */
+    private void recoverLog() {
+        if (!writeAheadLog.isFailed() || !recovering.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            storageExecutor.execute(() -> {
+                try {
+                    snapshot();
+                } catch (IOException | RuntimeException ignored) {
+                } finally {
+                    recovering.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            recovering.set(false);
+        }
+    }
+
+    /**
+     * Returns the document with the value set under the key. Objects already holding the value's
+     * path are kept and the value is merged into an object found at the key, as the first version
+     * of the database did when it merged the request into the document. A value replacing a whole
+     * top-level key is stored as it is, so only a merge or a path below the top level parses it.
+     */
+    static PersistentMap<String, JsonValue> applySet(PersistentMap<String, JsonValue> document,
+                                                     JsonElement key, JsonValue value) {
+        JsonArray path = pathOf(key);
+        String topKey = path.get(0).getAsString();
+        JsonValue existing = document.get(topKey);
+        if (path.size() == 1 && (!checkIfNotNull(existing) || !existing.isObject() || !value.isObject())) {
+            return document.put(topKey, value);
+        }
+        JsonElement element = checkIfNotNull(existing) ? existing.get() : null;
+        JsonElement changed = setIn(element, path, 1, value.get());
+        return document.put(topKey, checkIfNotNull(existing) ? existing.changedAt(path, changed) : JsonValue.parsed(changed));
+    }
+
+    private static JsonElement setIn(JsonElement element, JsonArray path, int index, JsonElement value) {
+        if (index == path.size()) {
+            return merge(element, value);
+        }
+        JsonObject object = checkIfNotNull(element) && element.isJsonObject()
+                ? copyOf(element.getAsJsonObject()) : new JsonObject();
+        String segment = path.get(index).getAsString();
+        object.add(segment, setIn(object.get(segment), path, index + 1, value));
+        return object;
+    }
+
+    private static JsonElement merge(JsonElement element, JsonElement value) {
+        if (!checkIfNotNull(element) || !element.isJsonObject() || !value.isJsonObject()) {
+            return value;
+        }
+        JsonObject object = copyOf(element.getAsJsonObject());
+        for (Map.Entry<String, JsonElement> entry : value.getAsJsonObject().entrySet()) {
+            object.add(entry.getKey(), merge(object.get(entry.getKey()), entry.getValue()));
+        }
+        return object;
+    }
+
+    /**
+     * Returns the document without the key, or null when there is no such key.
+     */
+    static PersistentMap<String, JsonValue> applyDelete(PersistentMap<String, JsonValue> document,
+                                                          JsonElement key) {
+        JsonArray path = pathOf(key);
+        String topKey = path.get(0).getAsString();
+        JsonValue existing = document.get(topKey);
+        if (!checkIfNotNull(existing)) {
+            return null;
+        }
+        if (path.size() == 1) {
+            return document.remove(topKey);
+        }
+        if (!existing.isObject()) {
+            return null;
+        }
+        JsonObject changed = deleteIn(existing.get().getAsJsonObject(), path, 1);
+        return checkIfNotNull(changed) ? document.put(topKey, existing.changedAt(path, changed)) : null;
+    }
+
+    private static JsonObject deleteIn(JsonObject object, JsonArray path, int index) {
+        String segment = path.get(index).getAsString();
+        JsonElement child = object.get(segment);
+        if (!checkIfNotNull(child)) {
+            return null;
+        }
+        JsonObject copy = copyOf(object);
+        if (index == path.size() - 1) {
+            copy.remove(segment);
+            return copy;
+        }
+        if (!child.isJsonObject()) {
+            return null;
+        }
+        JsonObject changed = deleteIn(child.getAsJsonObject(), path, index + 1);
+        if (!checkIfNotNull(changed)) {
+            return null;
+        }
+        copy.add(segment, changed);
+        return copy;
+    }
+
+    /**
+     * Looks the element up through the path index of the value under the top-level key.
+     */
+    static JsonElement find(PersistentMap<String, JsonValue> document, JsonElement key) {
+        JsonArray path = pathOf(key);
+        JsonValue value = document.get(path.get(0).getAsString());
+        return checkIfNotNull(value) ? value.find(path) : null;
+    }
+
+    /**
+     * Copies the members of an object but not their values, which are shared with the original.
+     */
+    private static JsonObject copyOf(JsonObject object) {
+        JsonObject copy = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            copy.add(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    private static JsonArray pathOf(JsonElement key) {
+        if (key.isJsonArray()) {
+            return key.getAsJsonArray();
+        }
+        JsonArray path = new JsonArray();
+        path.add(key);
+        return path;
+    }
+
+    private static String topKeyOf(JsonElement key) {
+        return pathOf(key).get(0).getAsString();
+    }
+
+    private static boolean isValidBatchRequest(JsonElement request) {
+        if (!checkIfNotNull(request) || !request.isJsonObject()) {
+            return false;
+        }
+        JsonElement type = request.getAsJsonObject().get("type");
+        if (!checkIfNotNull(type) || !type.isJsonPrimitive()) {
+            return false;
+        }
+        switch (type.getAsString()) {
+            case Constants.TYPE_GET:
+            case Constants.TYPE_DELETE:
+                return isValidKey(request.getAsJsonObject().get("key"));
+            case Constants.TYPE_SET:
+                return isValidKey(request.getAsJsonObject().get("key"))
+                        && checkIfNotNull(request.getAsJsonObject().get("value"));
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isValidBound(JsonElement bound) {
+        return !checkIfNotNull(bound) || bound.isJsonPrimitive();
+    }
+
+    private static boolean isValidKey(JsonElement key) {
+        if (!checkIfNotNull(key) || key.isJsonNull() || key.isJsonObject()) {
+            return false;
+        }
+        if (key.isJsonArray()) {
+            JsonArray keyArray = key.getAsJsonArray();
+            if (keyArray.size() == 0) {
+                return false;
+            }
+            for (JsonElement k : keyArray) {
+                if (!k.isJsonPrimitive()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean checkIfNotNull(Object input) {
+        return !Objects.equals(input, null);
+    }
+
+    static class Result {
+
+        private final int code;
+
+        private final JsonElement value;
+
+        Result(int code, JsonElement value) {
+            this.code = code;
+            this.value = value;
+        }
+
+        int getCode() {
+            return code;
+        }
+
+        JsonElement getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * A page of the keys of a scan, with the cursor to pass to get the next page, or null on the last page.
+     */
+    static class Page {
+
+        private final JsonObject entries;
+
+        private final String cursor;
+
+        Page(JsonObject entries, String cursor) {
+            this.entries = entries;
+            this.cursor = cursor;
+        }
+
+        JsonObject getEntries() {
+            return entries;
+        }
+
+        String getCursor() {
+            return cursor;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The framing of requests and responses on the wire, shared by the blocking and the non-blocking
+ * server engines: each message is a four byte length followed by that many bytes of UTF-8 encoded JSON.
+ * Requests are decoded straight from the bytes of their frame, without building a string first, and
+ * responses are streamed into a buffer kept by every thread, right behind the room left for their header.
+ * A response outgrowing {@link Constants#MAX_FRAME_SIZE} is cut off as soon as it does and answered with
+ * an error instead, as the other side would refuse the frame anyway.
+ */
+class Frames {
+
+    static final int HEADER_SIZE = Integer.BYTES;
+
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
+
+    private static final ThreadLocal<FrameBuffer> BUFFERS = ThreadLocal.withInitial(FrameBuffer::new);
+
+    private Frames() {
+    }
+
+    /**
+     * Reads the next request from the stream, throwing {@link EOFException} when the stream ends before it.
+     */
+    static Request read(DataInputStream dataInputStream) throws IOException {
+        byte[] body = new byte[checkLength(dataInputStream.readInt())];
+        dataInputStream.readFully(body);
+        long receivedAt = System.nanoTime();
+        return Request.decode(body, 0, body.length).received(receivedAt, body.length);
+    }
+
+    /**
+     * Takes the next complete request out of a buffer in read mode, or returns null and leaves
+     * the buffer untouched when the frame has not been received completely yet. The body is copied
+     * out of the buffer, which is reused, because the value of the request keeps pointing into it.
+     */
+    static Request decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int length = checkLength(buffer.getInt(buffer.position()));
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        buffer.position(buffer.position() + HEADER_SIZE);
+        buffer.get(body);
+        long receivedAt = System.nanoTime();
+        return Request.decode(body, 0, length).received(receivedAt, length);
+    }
+
+    /**
+     * Returns the size of the frame at the start of a buffer in read mode, header included, so the buffer
+     * can be grown to hold all of it; just the header size while the header itself is incomplete.
+     */
+    static int sizeOfNext(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return HEADER_SIZE;
+        }
+        return HEADER_SIZE + checkLength(buffer.getInt(buffer.position()));
+    }
+
+    /**
+     * Returns the whole frame of the message in a buffer of its own, which may be queued for writing.
+     */
+    static ByteBuffer encode(JsonElement message) throws IOException {
+        FrameBuffer buffer = serialize(message);
+        ByteBuffer frame = ByteBuffer.wrap(buffer.toByteArray());
+        buffer.release();
+        return frame;
+    }
+
+    private static FrameBuffer serialize(JsonElement message) throws IOException {
+        FrameBuffer buffer = BUFFERS.get();
+        try {
+            try {
+                buffer.append(message);
+            } catch (FrameTooLargeException e) {
+                buffer.discard();
+                buffer.append(tooLargeResponseTo(message));
+            }
+        } catch (IOException | RuntimeException e) {
+            buffer.discard();
+            throw e;
+        }
+        buffer.writeHeader();
+        return buffer;
+    }
+
+    private static JsonObject tooLargeResponseTo(JsonElement message) {
+        JsonObject response = new JsonObject();
+        response.addProperty(Constants.RESPONSE, Constants.ERROR_MESSAGE);
+        response.addProperty(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_TOO_LARGE);
+        if (message.isJsonObject() && message.getAsJsonObject().has(Constants.REQUEST_ID)) {
+            response.add(Constants.REQUEST_ID, message.getAsJsonObject().get(Constants.REQUEST_ID));
+        }
+        return response;
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > Constants.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * A growing byte array reused for the frames serialized by one thread. It starts every frame with
+     * room for the header, which is filled in once the length of the body is known.
+     */
+    private static class FrameBuffer extends ByteArrayOutputStream {
+
+        private Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+
+        FrameBuffer() {
+            super(Constants.READ_BUFFER_SIZE);
+            count = HEADER_SIZE;
+        }
+
+        void append(JsonElement message) throws IOException {
+            JsonWriter jsonWriter = new JsonWriter(writer);
+            GSON.toJson(message, jsonWriter);
+            jsonWriter.flush();
+        }
+
+        @Override
+        public void write(int b) {
+            checkRoomFor(1);
+            super.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            checkRoomFor(len);
+            super.write(b, off, len);
+        }
+
+        private void checkRoomFor(int length) {
+            if (count - HEADER_SIZE + (long) length > Constants.MAX_FRAME_SIZE) {
+                throw new FrameTooLargeException();
+            }
+        }
+
+        void writeHeader() {
+            int length = count - HEADER_SIZE;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+        }
+
+        /**
+         * Gets the buffer ready for the next frame, dropping an array grown far beyond the usual size.
+         */
+        void release() {
+            if (buf.length > Constants.MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[Constants.READ_BUFFER_SIZE];
+            }
+            count = HEADER_SIZE;
+        }
+
+        /**
+         * Drops a frame that failed half way, together with whatever the writer still buffers of it.
+         */
+        void discard() {
+            writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+            release();
+        }
+    }
+
+    private static class FrameTooLargeException extends RuntimeException {
+    }
+}
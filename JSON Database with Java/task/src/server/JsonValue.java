@@ -0,0 +1,362 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A value stored under a top-level key. A value set by a request is kept as the UTF-8 bytes it was
+ * received as and is only parsed the first time something needs its elements, such as a get of a path
+ * inside it or a merge into it. Until then it goes to the log and to snapshots as those very bytes.
+ * Either way the value never changes once created.
+ * <p>
+ * The first get of a path below the top level also builds an index mapping the path of every member
+ * nested in the value to its element, so such gets are a single hash probe instead of a walk down the
+ * objects. A value changed by a set or delete below the top level takes the index of the value it
+ * replaces over, updating only the entries of the changed path and of the subtrees it replaced and added.
+ * <p>
+ * The elements and the index are only a decoded form of the value, which the {@link ValueCache} may
+ * have it drop to bound the memory they take. A value created from elements is serialized first,
+ * so every value can be decoded again from its bytes. Decoding and dropping take the lock of the value,
+ * so an index is never left behind without the elements it points into, which the cache would not
+ * count; the cache itself is only called outside of that lock, as it drops values under its own.
+ */
+class JsonValue {
+
+    private final byte[] bytes;
+
+    private final int offset;
+
+    private final int length;
+
+    private volatile JsonElement element;
+
+    private volatile PersistentMap<List<String>, JsonElement> index;
+
+    /**
+     * The serialized elements of a value created from them, once they may be dropped.
+     */
+    private volatile byte[] serialized;
+
+    private static volatile ValueCache cache = new ValueCache(0);
+
+    private JsonValue(byte[] bytes, int offset, int length, JsonElement element) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.element = element;
+    }
+
+    /**
+     * Wraps a slice of bytes already checked to hold a single valid JSON value.
+     */
+    static JsonValue raw(byte[] bytes, int offset, int length) {
+        return new JsonValue(bytes, offset, length, null);
+    }
+
+    static JsonValue parsed(JsonElement element) {
+        return new JsonValue(null, 0, 0, element);
+    }
+
+    /**
+     * Sets the cache recording the uses of decoded values from now on.
+     */
+    static void useCache(ValueCache valueCache) {
+        cache = valueCache;
+    }
+
+    /**
+     * Returns the elements of the value, parsing the bytes when they are not decoded. They must not be changed.
+     */
+    JsonElement get() {
+        JsonElement parsed = element;
+        if (parsed != null) {
+            cache.recordHit(this);
+            return parsed;
+        }
+        boolean missed = false;
+        synchronized (this) {
+            parsed = element;
+            if (parsed == null) {
+                parsed = JsonParser.parseReader(new InputStreamReader(bytes != null
+                        ? new ByteArrayInputStream(bytes, offset, length)
+                        : new ByteArrayInputStream(serialized), StandardCharsets.UTF_8));
+                element = parsed;
+                missed = true;
+            }
+        }
+        if (missed) {
+            cache.recordMiss(this);
+        } else {
+            cache.recordHit(this);
+        }
+        return parsed;
+    }
+
+    boolean isDecoded() {
+        return element != null;
+    }
+
+    /**
+     * Returns the number of bytes the value is stored as, serializing a value created from elements.
+     */
+    int weight() {
+        if (bytes != null) {
+            return length;
+        }
+        return serialize().length;
+    }
+
+    /**
+     * Drops the elements and the index, which are decoded again when next needed.
+     */
+    synchronized void evict() {
+        if (bytes == null) {
+            serialize();
+        }
+        element = null;
+        index = null;
+    }
+
+    /**
+     * Only called by the cache while the value is decoded, as nothing else drops the elements.
+     */
+    private byte[] serialize() {
+        byte[] current = serialized;
+        if (current == null) {
+            current = element.toString().getBytes(StandardCharsets.UTF_8);
+            serialized = current;
+        }
+        return current;
+    }
+
+    /**
+     * Returns the bytes of a value created from elements, serializing them when they are not yet. The
+     * elements are read before the bytes, as they are only ever dropped after the bytes were set.
+     */
+    private byte[] serializedBytes() {
+        JsonElement decoded = element;
+        byte[] current = serialized;
+        return current != null ? current : decoded.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the element at the path, whose first segment is the top-level key of this value,
+     * or null when there is no such element.
+     */
+    JsonElement find(JsonArray path) {
+        if (path.size() == 1) {
+            return get();
+        }
+        return index().get(relativeOf(path, path.size()));
+    }
+
+    /**
+     * Returns the element at the path of member names below the top level, or null when there is no such
+     * element, without decoding the value when it is not decoded yet: its bytes are streamed through instead,
+     * skipping every member off the path and parsing only the element found. This is what keeps maintaining
+     * the secondary indexes from decoding every value a change publishes or replaces.
+     */
+    JsonElement elementAt(List<String> path) {
+        JsonElement decoded = element;
+        if (decoded != null) {
+            for (String segment : path) {
+                if (!decoded.isJsonObject()) {
+                    return null;
+                }
+                decoded = decoded.getAsJsonObject().get(segment);
+                if (decoded == null) {
+                    return null;
+                }
+            }
+            return decoded;
+        }
+        try (JsonReader reader = new JsonReader(new InputStreamReader(bytes != null
+                ? new ByteArrayInputStream(bytes, offset, length)
+                : new ByteArrayInputStream(serialized), StandardCharsets.UTF_8))) {
+            reader.setLenient(true);
+            return elementAt(reader, path, 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the element at the path from the depth on out of the next value of the reader, consuming
+     * the whole value. A member repeated in an object counts with its last occurrence, as when parsed.
+     */
+    private static JsonElement elementAt(JsonReader reader, List<String> path, int depth) throws IOException {
+        if (depth == path.size()) {
+            return JsonParser.parseReader(reader);
+        }
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        JsonElement found = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(path.get(depth))) {
+                found = elementAt(reader, path, depth + 1);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return found;
+    }
+
+    /**
+     * Returns the value of the element the path was changed in, an element derived from this value by
+     * copying the objects down to the end of the path. When this value was indexed, so is the new one.
+     */
+    JsonValue changedAt(JsonArray path, JsonElement changed) {
+        JsonValue value = parsed(changed);
+        PersistentMap<List<String>, JsonElement> current = index;
+        if (current == null || path.size() == 1) {
+            return value;
+        }
+        List<String> target = relativeOf(path, path.size());
+        JsonElement replaced = current.get(target);
+        if (replaced != null) {
+            current = unindex(current, target, replaced);
+        }
+        JsonElement element = changed;
+        for (int i = 1; i < path.size() && element != null && element.isJsonObject(); i++) {
+            element = element.getAsJsonObject().get(path.get(i).getAsString());
+            if (element != null) {
+                List<String> prefix = relativeOf(path, i + 1);
+                current = i == path.size() - 1 ? index(current, prefix, element) : current.put(prefix, element);
+            }
+        }
+        value.index = current;
+        return value;
+    }
+
+    /**
+     * Returns the index, building it outside of the lock from the elements. When they were dropped
+     * meanwhile, the value takes them back together with the index and is handed to the cache again.
+     */
+    private PersistentMap<List<String>, JsonElement> index() {
+        PersistentMap<List<String>, JsonElement> current = index;
+        if (current != null) {
+            return current;
+        }
+        JsonElement root = get();
+        PersistentMap<List<String>, JsonElement> built = root.isJsonObject()
+                ? indexMembers(PersistentMap.empty(), new ArrayList<>(), root.getAsJsonObject())
+                : PersistentMap.empty();
+        boolean decodedAgain = false;
+        synchronized (this) {
+            current = index;
+            if (current != null) {
+                return current;
+            }
+            if (element == null) {
+                element = root;
+                decodedAgain = true;
+            }
+            index = built;
+        }
+        if (decodedAgain) {
+            cache.admit(this);
+        }
+        return built;
+    }
+
+    private static PersistentMap<List<String>, JsonElement> index(PersistentMap<List<String>, JsonElement> index,
+                                                                 List<String> path, JsonElement element) {
+        index = index.put(path, element);
+        return element.isJsonObject() ? indexMembers(index, path, element.getAsJsonObject()) : index;
+    }
+
+    private static PersistentMap<List<String>, JsonElement> indexMembers(PersistentMap<List<String>, JsonElement> index,
+                                                                        List<String> path, JsonObject object) {
+        for (Map.Entry<String, JsonElement> member : object.entrySet()) {
+            index = index(index, append(path, member.getKey()), member.getValue());
+        }
+        return index;
+    }
+
+    private static PersistentMap<List<String>, JsonElement> unindex(PersistentMap<List<String>, JsonElement> index,
+                                                                   List<String> path, JsonElement element) {
+        index = index.remove(path);
+        if (element.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> member : element.getAsJsonObject().entrySet()) {
+                index = unindex(index, append(path, member.getKey()), member.getValue());
+            }
+        }
+        return index;
+    }
+
+    private static List<String> append(List<String> path, String segment) {
+        List<String> appended = new ArrayList<>(path.size() + 1);
+        appended.addAll(path);
+        appended.add(segment);
+        return appended;
+    }
+
+    /**
+     * Returns the segments of the path after the top-level key and before the end.
+     */
+    private static List<String> relativeOf(JsonArray path, int end) {
+        List<String> relative = new ArrayList<>(end - 1);
+        for (int i = 1; i < end; i++) {
+            relative.add(path.get(i).getAsString());
+        }
+        return relative;
+    }
+
+    boolean isObject() {
+        JsonElement decoded = element;
+        if (decoded != null) {
+            return decoded.isJsonObject();
+        }
+        byte[] source = bytes != null ? bytes : serialized;
+        int start = bytes != null ? offset : 0;
+        int end = bytes != null ? offset + length : serialized.length;
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(source[i])) {
+                return source[i] == '{';
+            }
+        }
+        return false;
+    }
+
+    void writeTo(ByteArrayOutputStream outputStream) {
+        if (bytes != null) {
+            outputStream.write(bytes, offset, length);
+        } else {
+            byte[] serialized = serializedBytes();
+            outputStream.write(serialized, 0, serialized.length);
+        }
+    }
+
+    void writeTo(JsonWriter jsonWriter) throws IOException {
+        jsonWriter.jsonValue(toString());
+    }
+
+    @Override
+    public String toString() {
+        if (bytes != null) {
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+        JsonElement decoded = element;
+        byte[] current = serialized;
+        return current != null ? new String(current, StandardCharsets.UTF_8) : decoded.toString();
+    }
+}
@@ -0,0 +1,695 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A log-structured storage engine. The document in memory together with the write-ahead log plays the
+ * part of the memtable: a checkpoint flushes the keys changed since the previous one, found by comparing
+ * the values of both versions by identity, as one immutable {@link SSTable} sorted by key, with tombstones
+ * for the deleted keys. A checkpoint therefore costs one sequential write of what changed, however large
+ * the document is.
+ * <p>
+ * Each table is named after the range of lsns it covers. Once there are more than
+ * {@link Constants#MAX_SSTABLES} of them, a compaction in the background merges all the tables after the
+ * oldest one, the base, into one. A tombstone is only kept while the base may still hold the key, which its
+ * Bloom filter mostly answers without reading the table. When the merged tables have outgrown the base,
+ * the base is merged in too and every tombstone is dropped. The merged table replaces the tables it covers,
+ * which are only deleted after it is in place, so a table contained in the range of another one is left
+ * over from an interrupted compaction and ignored.
+ */
+class LsmStore implements StorageEngine {
+
+    private static final String TABLE_PREFIX = "sstable-";
+
+    private static final String TABLE_SUFFIX = ".sst";
+
+    private final Path directory;
+
+    private final Executor executor;
+
+    private final List<SSTable> tables = new ArrayList<>();
+
+    private PersistentMap<String, JsonValue> checkpointed = PersistentMap.empty();
+
+    private CompletableFuture<Void> compaction = CompletableFuture.completedFuture(null);
+
+    /**
+     * Whether the tables hold the checkpoint the next one is written on top of; when the document
+     * was loaded from elsewhere, the next checkpoint starts over with a single table.
+     */
+    private boolean current = false;
+
+    LsmStore(Path directory, Executor executor) {
+        this.directory = directory;
+        this.executor = executor;
+    }
+
+    @Override
+    public long latestLsn() throws IOException {
+        long lsn = NO_CHECKPOINT;
+        for (Path table : listTables()) {
+            lsn = Math.max(lsn, maxLsnOf(table));
+        }
+        return lsn;
+    }
+
+    /**
+     * Opens the tables and applies their entries from the oldest table to the newest one.
+     */
+    @Override
+    public Snapshot load() throws IOException {
+        List<Path> paths = listTables();
+        PersistentMap<String, JsonValue> document = PersistentMap.empty();
+        for (Path path : paths) {
+            if (isCovered(path, paths)) {
+                Files.deleteIfExists(path);
+                continue;
+            }
+            SSTable table = SSTable.open(path, minLsnOf(path), maxLsnOf(path));
+            Iterator<SSTable.Entry> entries = table.iterator();
+            while (entries.hasNext()) {
+                SSTable.Entry entry = entries.next();
+                document = entry.value != null
+                        ? document.put(entry.key, JsonValue.raw(entry.value, 0, entry.value.length))
+                        : document.remove(entry.key);
+            }
+            synchronized (this) {
+                tables.add(table);
+            }
+        }
+        checkpointed = document;
+        current = true;
+        return new Snapshot(latestLsn(), document);
+    }
+
+    @Override
+    public void write(long lsn, PersistentMap<String, JsonValue> document) throws IOException {
+        if (!current) {
+            compaction.join();
+            for (Path path : listTables()) {
+                Files.deleteIfExists(path);
+            }
+            synchronized (this) {
+                tables.clear();
+            }
+            checkpointed = PersistentMap.empty();
+            current = true;
+        }
+        TreeMap<String, byte[]> changes = new TreeMap<>();
+        for (Map.Entry<String, JsonValue> entry : document) {
+            if (checkpointed.get(entry.getKey()) != entry.getValue()) {
+                ByteArrayOutputStream value = new ByteArrayOutputStream();
+                entry.getValue().writeTo(value);
+                changes.put(entry.getKey(), value.toByteArray());
+            }
+        }
+        for (Map.Entry<String, JsonValue> entry : checkpointed) {
+            if (document.get(entry.getKey()) == null) {
+                changes.put(entry.getKey(), null);
+            }
+        }
+        long minLsn;
+        synchronized (this) {
+            minLsn = tables.isEmpty() ? 0 : tables.get(tables.size() - 1).getMaxLsn() + 1;
+        }
+        Iterator<SSTable.Entry> entries = changes.entrySet().stream()
+                .map(change -> new SSTable.Entry(change.getKey(), change.getValue())).iterator();
+        SSTable table = SSTable.write(pathOf(minLsn, lsn), minLsn, lsn, entries);
+        checkpointed = document;
+        synchronized (this) {
+            tables.add(table);
+            if (tables.size() > Constants.MAX_SSTABLES && compaction.isDone()) {
+                compaction = CompletableFuture.runAsync(this::compact, executor);
+            }
+        }
+    }
+
+    /**
+     * Waits for a compaction still running, so it is not cut off halfway.
+     */
+    @Override
+    public void close() {
+        CompletableFuture<Void> running;
+        synchronized (this) {
+            running = compaction;
+        }
+        running.exceptionally(throwable -> null).join();
+    }
+
+    private void compact() {
+        try {
+            while (true) {
+                List<SSTable> inputs;
+                SSTable base;
+                synchronized (this) {
+                    if (tables.size() <= Constants.MAX_SSTABLES) {
+                        return;
+                    }
+                    inputs = new ArrayList<>(tables);
+                }
+                long mergedSize = 0;
+                for (SSTable table : inputs.subList(1, inputs.size())) {
+                    mergedSize += table.getSize();
+                }
+                if (mergedSize > inputs.get(0).getSize()) {
+                    base = null;
+                } else {
+                    base = inputs.remove(0);
+                }
+                SSTable merged = merge(inputs, base);
+                synchronized (this) {
+                    int from = tables.indexOf(inputs.get(0));
+                    tables.subList(from, from + inputs.size()).clear();
+                    tables.add(from, merged);
+                }
+                for (SSTable table : inputs) {
+                    Files.deleteIfExists(table.getPath());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error occurred while compacting the tables: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Merges consecutive tables into one, newer entries replacing older ones. Tombstones are dropped
+     * unless the base, the older table left out of the merge, may still hold a value of the key.
+     */
+    private SSTable merge(List<SSTable> inputs, SSTable base) throws IOException {
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            Cursor cursor = new Cursor(inputs.get(i).iterator(), i);
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+        }
+        Iterator<SSTable.Entry> merged = new Iterator<>() {
+
+            private SSTable.Entry next = find();
+
+            private SSTable.Entry find() {
+                try {
+                    while (!cursors.isEmpty()) {
+                        Cursor newest = cursors.poll();
+                        SSTable.Entry entry = newest.entry;
+                        if (newest.advance()) {
+                            cursors.add(newest);
+                        }
+                        while (!cursors.isEmpty() && cursors.peek().entry.key.equals(entry.key)) {
+                            Cursor older = cursors.poll();
+                            if (older.advance()) {
+                                cursors.add(older);
+                            }
+                        }
+                        if (entry.value != null || (base != null && base.lookup(entry.key) == SSTable.Lookup.VALUE)) {
+                            return entry;
+                        }
+                    }
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public SSTable.Entry next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                SSTable.Entry current = next;
+                next = find();
+                return current;
+            }
+        };
+        long minLsn = inputs.get(0).getMinLsn();
+        long maxLsn = inputs.get(inputs.size() - 1).getMaxLsn();
+        try {
+            return SSTable.write(pathOf(minLsn, maxLsn), minLsn, maxLsn, merged);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Path pathOf(long minLsn, long maxLsn) {
+        return directory.resolve(String.format("%s%020d-%020d%s", TABLE_PREFIX, minLsn, maxLsn, TABLE_SUFFIX));
+    }
+
+    private List<Path> listTables() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(TABLE_PREFIX)
+                            && file.getFileName().toString().endsWith(TABLE_SUFFIX))
+                    .sorted(Comparator.comparingLong(LsmStore::maxLsnOf))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isCovered(Path table, List<Path> tables) {
+        for (Path other : tables) {
+            if (other != table && minLsnOf(other) <= minLsnOf(table) && maxLsnOf(table) <= maxLsnOf(other)
+                    && (minLsnOf(other) < minLsnOf(table) || maxLsnOf(table) < maxLsnOf(other))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long minLsnOf(Path table) {
+        String name = table.getFileName().toString();
+        return Long.parseLong(name.substring(TABLE_PREFIX.length(), name.indexOf('-', TABLE_PREFIX.length())));
+    }
+
+    private static long maxLsnOf(Path table) {
+        String name = table.getFileName().toString();
+        return Long.parseLong(name.substring(name.indexOf('-', TABLE_PREFIX.length()) + 1,
+                name.length() - TABLE_SUFFIX.length()));
+    }
+
+    /**
+     * The position of a merge in one of its tables; of two cursors at the same key the one of the newer table comes first.
+     */
+    private static class Cursor implements Comparable<Cursor> {
+
+        private final Iterator<SSTable.Entry> entries;
+
+        private final int age;
+
+        private SSTable.Entry entry;
+
+        Cursor(Iterator<SSTable.Entry> entries, int age) {
+            this.entries = entries;
+            this.age = age;
+        }
+
+        boolean advance() {
+            entry = entries.hasNext() ? entries.next() : null;
+            return entry != null;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int byKey = entry.key.compareTo(other.entry.key);
+            return byKey != 0 ? byKey : Integer.compare(other.age, age);
+        }
+    }
+}
+
+/**
+ * An immutable file of entries sorted by key, each one a value or a tombstone. The entries are written
+ * in blocks of about {@link Constants#SSTABLE_BLOCK_SIZE} bytes, each one deflated on its own, followed by
+ * a sparse index holding the first key, the position and the lengths of every block, a {@link BloomFilter} of the keys and a fixed-size footer.
+ * The index and the filter are kept in memory, so looking a key up inflates at most one block, and none at
+ * all for most keys the table does not hold. The file is written to a temporary file, forced to disk and
+ * then renamed into place, and a CRC32 of everything before it in the footer is checked when it is read.
+ */
+class SSTable {
+
+    private static final int MAGIC = 0x53535432;
+
+    /**
+     * Ends the tables written before the blocks were compressed, whose index holds no inflated lengths.
+     */
+    private static final int PLAIN_MAGIC = 0x53535431;
+
+    private static final int FOOTER_SIZE = 40;
+
+    private static final byte VALUE = 0;
+
+    private static final byte TOMBSTONE = 1;
+
+    enum Lookup { VALUE, TOMBSTONE, ABSENT }
+
+    private final Path path;
+
+    private final long minLsn;
+
+    private final long maxLsn;
+
+    private final long size;
+
+    private final String[] firstKeys;
+
+    private final long[] blockOffsets;
+
+    private final int[] blockLengths;
+
+    private final int[] inflatedLengths;
+
+    private final BloomFilter bloomFilter;
+
+    private SSTable(Path path, long minLsn, long maxLsn, long size, String[] firstKeys, long[] blockOffsets,
+                    int[] blockLengths, int[] inflatedLengths, BloomFilter bloomFilter) {
+        this.path = path;
+        this.minLsn = minLsn;
+        this.maxLsn = maxLsn;
+        this.size = size;
+        this.firstKeys = firstKeys;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.inflatedLengths = inflatedLengths;
+        this.bloomFilter = bloomFilter;
+    }
+
+    /**
+     * Writes the entries, which must come sorted by key without duplicates, as the table of the lsn range.
+     */
+    static SSTable write(Path path, long minLsn, long maxLsn, Iterator<Entry> entries) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        List<String> firstKeys = new ArrayList<>();
+        List<Long> blockOffsets = new ArrayList<>();
+        List<Integer> blockLengths = new ArrayList<>();
+        List<Integer> inflatedLengths = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        long position = 0;
+        try (FileOutputStream fileOutputStream = new FileOutputStream(tempPath.toFile());
+             OutputStream outputStream = new BufferedOutputStream(fileOutputStream)) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            DataOutputStream blockOutput = new DataOutputStream(block);
+            while (entries.hasNext()) {
+                Entry entry = entries.next();
+                if (block.size() == 0) {
+                    firstKeys.add(entry.key);
+                }
+                keys.add(entry.key);
+                writeString(blockOutput, entry.key);
+                blockOutput.writeByte(entry.value != null ? VALUE : TOMBSTONE);
+                byte[] value = entry.value != null ? entry.value : new byte[0];
+                blockOutput.writeInt(value.length);
+                blockOutput.write(value);
+                if (block.size() >= Constants.SSTABLE_BLOCK_SIZE || !entries.hasNext()) {
+                    byte[] deflated = CompressedBlocks.deflate(block.toByteArray(), 0, block.size());
+                    blockOffsets.add(position);
+                    blockLengths.add(deflated.length);
+                    inflatedLengths.add(block.size());
+                    position += write(outputStream, crc, deflated);
+                    block.reset();
+                }
+            }
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream indexOutput = new DataOutputStream(index);
+            indexOutput.writeInt(firstKeys.size());
+            for (int i = 0; i < firstKeys.size(); i++) {
+                writeString(indexOutput, firstKeys.get(i));
+                indexOutput.writeLong(blockOffsets.get(i));
+                indexOutput.writeInt(blockLengths.get(i));
+                indexOutput.writeInt(inflatedLengths.get(i));
+            }
+            long indexOffset = position;
+            position += write(outputStream, crc, index.toByteArray());
+            BloomFilter bloomFilter = BloomFilter.of(keys);
+            long bloomOffset = position;
+            position += write(outputStream, crc, bloomFilter.toByteArray());
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            footer.putLong(minLsn).putLong(maxLsn).putLong(indexOffset).putLong(bloomOffset);
+            crc.update(footer.array(), 0, 32);
+            footer.putInt((int) crc.getValue()).putInt(MAGIC);
+            outputStream.write(footer.array());
+            position += FOOTER_SIZE;
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(path, minLsn, maxLsn, false);
+    }
+
+    private static int write(OutputStream outputStream, CRC32 crc, byte[] bytes) throws IOException {
+        outputStream.write(bytes);
+        crc.update(bytes);
+        return bytes.length;
+    }
+
+    /**
+     * Reads the footer, the index and the Bloom filter of the table and checks the file against its CRC32.
+     */
+    static SSTable open(Path path, long minLsn, long maxLsn) throws IOException {
+        return open(path, minLsn, maxLsn, true);
+    }
+
+    private static SSTable open(Path path, long minLsn, long maxLsn, boolean verify) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER_SIZE) {
+                throw new IOException("The table " + path + " is truncated");
+            }
+            ByteBuffer footer = read(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong(16);
+            long bloomOffset = footer.getLong(24);
+            boolean compressed = footer.getInt(36) == MAGIC;
+            if (!compressed && footer.getInt(36) != PLAIN_MAGIC || indexOffset > bloomOffset || bloomOffset > size - FOOTER_SIZE) {
+                throw new IOException("The table " + path + " is corrupt");
+            }
+            if (verify) {
+                verify(path, size, footer);
+            }
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(
+                    read(channel, indexOffset, (int) (bloomOffset - indexOffset)).array()));
+            int blocks = index.readInt();
+            String[] firstKeys = new String[blocks];
+            long[] blockOffsets = new long[blocks];
+            int[] blockLengths = new int[blocks];
+            int[] inflatedLengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                firstKeys[i] = readString(index);
+                blockOffsets[i] = index.readLong();
+                blockLengths[i] = index.readInt();
+                inflatedLengths[i] = compressed ? index.readInt() : -1;
+            }
+            BloomFilter bloomFilter = BloomFilter.from(read(channel, bloomOffset, (int) (size - FOOTER_SIZE - bloomOffset)));
+            return new SSTable(path, minLsn, maxLsn, size, firstKeys, blockOffsets, blockLengths, inflatedLengths, bloomFilter);
+        }
+    }
+
+    private static void verify(Path path, long size, ByteBuffer footer) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(path))) {
+            byte[] buffer = new byte[Constants.READ_BUFFER_SIZE];
+            long remaining = size - FOOTER_SIZE;
+            while (remaining > 0) {
+                int count = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                crc.update(buffer, 0, count);
+                remaining -= count;
+            }
+        }
+        crc.update(footer.array(), 0, 32);
+        if ((int) crc.getValue() != footer.getInt(32)) {
+            throw new IOException("The table " + path + " does not match its checksum");
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.flip();
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getMinLsn() {
+        return minLsn;
+    }
+
+    long getMaxLsn() {
+        return maxLsn;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Tells whether the table holds a value or a tombstone of the key, reading only the one block which may hold it.
+     */
+    Lookup lookup(String key) throws IOException {
+        if (!bloomFilter.mightContain(key)) {
+            return Lookup.ABSENT;
+        }
+        int block = Arrays.binarySearch(firstKeys, key);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        if (block < 0) {
+            return Lookup.ABSENT;
+        }
+        for (Entry entry : readBlock(block)) {
+            if (entry.key.equals(key)) {
+                return entry.value != null ? Lookup.VALUE : Lookup.TOMBSTONE;
+            }
+        }
+        return Lookup.ABSENT;
+    }
+
+    /**
+     * Returns the entries in key order, reading a block at a time.
+     */
+    Iterator<Entry> iterator() {
+        return new Iterator<>() {
+
+            private int block = 0;
+
+            private Iterator<Entry> entries = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!entries.hasNext() && block < firstKeys.length) {
+                    try {
+                        entries = readBlock(block++).iterator();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return entries.hasNext();
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return entries.next();
+            }
+        };
+    }
+
+    private List<Entry> readBlock(int block) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            bytes = read(channel, blockOffsets[block], blockLengths[block]);
+        }
+        byte[] entryBytes = inflatedLengths[block] < 0 ? bytes.array()
+                : CompressedBlocks.inflate(bytes.array(), 0, blockLengths[block], inflatedLengths[block]);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(entryBytes));
+        List<Entry> entries = new ArrayList<>();
+        while (input.available() > 0) {
+            String key = readString(input);
+            byte kind = input.readByte();
+            byte[] value = new byte[input.readInt()];
+            input.readFully(value);
+            entries.add(new Entry(key, kind == VALUE ? value : null));
+        }
+        return entries;
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A key with the UTF-8 bytes of its value, or with null for a tombstone.
+     */
+    static class Entry {
+
+        final String key;
+
+        final byte[] value;
+
+        Entry(String key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
+
+/**
+ * A Bloom filter of about ten bits per key probed at seven positions, which tells a key the set does
+ * not hold apart from the others with a false positive rate of about one percent.
+ */
+class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+
+    private static final int HASHES = 7;
+
+    private final long[] words;
+
+    private BloomFilter(long[] words) {
+        this.words = words;
+    }
+
+    static BloomFilter of(Collection<String> keys) {
+        BloomFilter bloomFilter = new BloomFilter(new long[Math.max(1, (keys.size() * BITS_PER_KEY + 63) / 64)]);
+        for (String key : keys) {
+            long bits = (long) bloomFilter.words.length * 64;
+            int first = key.hashCode();
+            int second = secondHashOf(key);
+            for (int i = 0; i < HASHES; i++) {
+                long bit = Math.floorMod(first + (long) i * second, bits);
+                bloomFilter.words[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+        return bloomFilter;
+    }
+
+    static BloomFilter from(ByteBuffer bytes) {
+        long[] words = new long[bytes.remaining() / Long.BYTES];
+        bytes.asLongBuffer().get(words);
+        return new BloomFilter(words);
+    }
+
+    byte[] toByteArray() {
+        ByteBuffer bytes = ByteBuffer.allocate(words.length * Long.BYTES);
+        bytes.asLongBuffer().put(words);
+        return bytes.array();
+    }
+
+    boolean mightContain(String key) {
+        long bits = (long) words.length * 64;
+        int first = key.hashCode();
+        int second = secondHashOf(key);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(first + (long) i * second, bits);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * An FNV-1a hash of the key, independent enough of {@link String#hashCode()} for double hashing.
+     */
+    private static int secondHashOf(String key) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x01000193;
+        }
+        return hash | 1;
+    }
+}
@@ -5,19 +5,22 @@ import com.beust.jcommander.Parameter;
 import com.google.gson.*;
 
 import java.io.*;
-import java.net.InetAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 class Constants {
 
@@ -33,6 +36,10 @@ class Constants {
 
     final static String ERROR_MESSAGE = "ERROR";
 
+    final static String REQUEST_ID = "id";
+
+    final static String REQUEST_VALUE = "value";
+
     final static String RESPONSE = "response";
 
     final static String RESPONSE_VALUE = "value";
@@ -43,6 +50,10 @@ class Constants {
 
     final static String RESPONSE_REASON_ILLEGAL = "Invalid arguments";
 
+    final static String RESPONSE_REASON_NO_INDEX = "No such index";
+
+    final static String RESPONSE_REASON_TOO_LARGE = "Response too large";
+
     final static String RESPONSE_DATABASE_ERROR = "503 - something went wrong on server side";
 
     final static String ADDRESS = "127.0.0.1";
@@ -53,29 +64,131 @@ class Constants {
 
     final static String PATH_TO_DATA = ".src/server/data/db.json";
 
+    final static String DATA_DIRECTORY = ".src/server/data";
+
+    final static int SNAPSHOT_INTERVAL = 60;
+
+    final static int STATS_INTERVAL = 60;
+
+    final static String TYPE_SET = "set";
+
+    final static String TYPE_DELETE = "delete";
+
+    final static String TYPE_GET = "get";
+
+    final static String TYPE_BATCH = "batch";
+
+    final static String TYPE_STATS = "stats";
+
+    final static String TYPE_SLOWLOG = "slowlog";
+
+    final static String TYPE_FIND = "find";
+
+    final static String TYPE_SCAN = "scan";
+
+    final static String REQUESTS = "requests";
+
+    final static String REQUEST_PREFIX = "prefix";
+
+    final static String REQUEST_FROM = "from";
+
+    final static String REQUEST_TO = "to";
+
+    final static String REQUEST_LIMIT = "limit";
+
+    final static String REQUEST_CURSOR = "cursor";
+
+    final static String RESPONSE_CURSOR = "cursor";
+
+    final static int SCAN_LIMIT = 100;
+
+    final static int MAX_SCAN_LIMIT = 1000;
+
     final static int POOL_SIZE = 4;
+
+    final static String ENGINE_NIO = "nio";
+
+    final static String ENGINE_POOL = "pool";
+
+    final static String ENGINE_VIRTUAL = "virtual";
+
+    final static String STORAGE_SNAPSHOT = "snapshot";
+
+    final static String STORAGE_MMAP = "mmap";
+
+    final static String STORAGE_LSM = "lsm";
+
+    final static int SELECT_TIMEOUT = 1000;
+
+    final static int READ_BUFFER_SIZE = 8192;
+
+    final static int SHUTDOWN_TIMEOUT = 5;
+
+    final static int IDLE_TIMEOUT = 30000;
+
+    final static int MAX_IN_FLIGHT = 256;
+
+    final static int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    final static int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    final static int LOCK_STRIPES = 64;
+
+    final static int SHARDS = 4;
+
+    final static int SSTABLE_BLOCK_SIZE = 4096;
+
+    final static int MAX_SSTABLES = 8;
+
+    final static int COMPRESSED_BLOCK_SIZE = 64 * 1024;
+
+    final static long CACHE_SIZE = 0;
+
+    final static long SLOWLOG_THRESHOLD = 10000;
+
+    final static int SLOWLOG_SIZE = 128;
 }
 
 public class Main {
 
     private static InputArguments inputArguments;
 
-    private static volatile boolean exitFlag = false;
+    private static Database database;
+
+    private static SlowLog slowLog;
+
+    private static Metrics metrics;
+
+    private static ScheduledExecutorService scheduler;
 
-    private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private static ExecutorService workers;
 
-    private static ServerSocket serverSocket;
+    private static volatile boolean exitFlag = false;
+
+    private static volatile ServerEngine engine;
 
     static InputArguments getInputArguments() {
         return inputArguments;
     }
 
-    public static Lock getWriteLock() {
-        return lock.writeLock();
+    static Database getDatabase() {
+        return database;
+    }
+
+    static Metrics getMetrics() {
+        return metrics;
     }
 
-    public static Lock getReadLock() {
-        return lock.readLock();
+    static SlowLog getSlowLog() {
+        return slowLog;
+    }
+
+    static ExecutorService getWorkers() {
+        return workers;
+    }
+
+    static boolean isExiting() {
+        return exitFlag;
     }
 
     public static void main(String[] args) {
@@ -85,56 +198,89 @@ public class Main {
 
     private static void initialise(String[] args) {
         inputArguments = new InputArguments(args);
-        File file = new File(Constants.PATH_TO_DATA);
+        exitFlag = false;
+        slowLog = new SlowLog(inputArguments.getSlowlogThreshold(), inputArguments.getSlowlogSize(),
+                inputArguments.getSlowlogFile());
+        metrics = new Metrics(slowLog);
+        String directory = inputArguments.getDataDirectory();
         try {
-            if(file.getParentFile().mkdirs()) {
-                Files.write(Path.of(Constants.PATH_TO_DATA), new byte[0]);
-            }
+            database = Database.open(directory,
+                    Path.of(directory).resolve(Path.of(Constants.PATH_TO_DATA).getFileName()).toString(),
+                    inputArguments.getStorage(), inputArguments.getIndexes(), inputArguments.getCacheSize(),
+                    metrics);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load the database from " + directory, e);
+        }
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int interval = inputArguments.getSnapshotInterval();
+        scheduler.scheduleWithFixedDelay(Main::takeSnapshot, interval, interval, TimeUnit.SECONDS);
+        if (inputArguments.getStatsFile() != null) {
+            int statsInterval = inputArguments.getStatsInterval();
+            scheduler.scheduleWithFixedDelay(Main::dumpStats, statsInterval, statsInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void takeSnapshot() {
+        try {
+            database.snapshot();
         } catch (Exception e) {
-            e.printStackTrace();
+            System.err.println("Error occurred while taking a snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends the statistics of the server to the stats file as a single line of JSON,
+     * stamped with the milliseconds since the epoch.
+     */
+    private static void dumpStats() {
+        JsonObject stats = metrics.toJson(database.getCache());
+        stats.addProperty("time", System.currentTimeMillis());
+        try {
+            Files.writeString(Path.of(inputArguments.getStatsFile()), stats + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Error occurred while writing the statistics: " + e.getMessage());
         }
     }
 
     private static void runServer() {
         try {
-            serverSocket = new ServerSocket(Constants.PORT, Constants.BACKLOG, InetAddress.getByName(Constants.ADDRESS));
-            System.out.println("Server started!");
-            ExecutorService executor = Executors.newFixedThreadPool(Constants.POOL_SIZE);
-
-            while (!exitFlag) {
-                try {
-                    Socket socket = serverSocket.accept();
-                    executor.submit(new handleSocket(socket));
-                } catch (Exception e) {
-                    if (exitFlag) {
-                        break;
-                    } else {
-                        e.printStackTrace();
-                    }
-                }
-            }
-            executor.shutdown();
+            engine = ServerEngine.create(inputArguments.getEngine());
+            engine.serve();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            workers.shutdown();
+            scheduler.shutdownNow();
             try {
-                if (serverSocket != null) {
-                    serverSocket.close();
-                }
+                database.close();
             } catch (IOException e) {
-                System.err.println("Error occurred while closing the server socket: " + e.getMessage());
+                System.err.println("Error occurred while closing the database: " + e.getMessage());
+            }
+            if (inputArguments.getStatsFile() != null) {
+                dumpStats();
+            }
+            try {
+                slowLog.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
     }
 
     public static void shutdownServer() {
         exitFlag = true;
-        try {
-            if (serverSocket != null) {
-                serverSocket.close();
-            }
-        } catch (IOException e) {
-            System.err.println("Error occurred while closing the server socket: " + e.getMessage());
+        if (engine != null) {
+            engine.stop();
         }
     }
 }
@@ -144,6 +290,45 @@ class InputArguments {
     @Parameter(names = {"-d"}, description = "Debugging mode flag", arity = 1)
     private boolean debug = false;
 
+    @Parameter(names = {"-port"}, description = "Port to listen on")
+    private int port = Constants.PORT;
+
+    @Parameter(names = {"-dataDirectory"}, description = "Directory holding the log, the checkpoints and the seed file")
+    private String dataDirectory = Constants.DATA_DIRECTORY;
+
+    @Parameter(names = {"-snapshotInterval"}, description = "Seconds between two snapshots of the database")
+    private int snapshotInterval = Constants.SNAPSHOT_INTERVAL;
+
+    @Parameter(names = {"-idleTimeout"}, description = "Milliseconds a kept-alive connection may stay idle before it is closed")
+    private int idleTimeout = Constants.IDLE_TIMEOUT;
+
+    @Parameter(names = {"-engine"}, description = "Server engine: nio, pool or virtual")
+    private String engine = Constants.ENGINE_NIO;
+
+    @Parameter(names = {"-storage"}, description = "Storage engine for the checkpoints: snapshot, mmap or lsm")
+    private String storage = Constants.STORAGE_SNAPSHOT;
+
+    @Parameter(names = {"-index"}, description = "Path under every top-level key to keep a secondary index of, such as car.model; may be repeated")
+    private List<String> indexes = new ArrayList<>();
+
+    @Parameter(names = {"-cacheSize"}, description = "Bytes of stored values to keep decoded in memory at most; 0 keeps every value decoded")
+    private long cacheSize = Constants.CACHE_SIZE;
+
+    @Parameter(names = {"-statsFile"}, description = "File to append the statistics of the server to periodically, one line of JSON at a time")
+    private String statsFile;
+
+    @Parameter(names = {"-statsInterval"}, description = "Seconds between two dumps of the statistics to the stats file")
+    private int statsInterval = Constants.STATS_INTERVAL;
+
+    @Parameter(names = {"-slowlogThreshold"}, description = "Microseconds from receiving a request to answering it above which it is kept in the slow log; negative keeps none")
+    private long slowlogThreshold = Constants.SLOWLOG_THRESHOLD;
+
+    @Parameter(names = {"-slowlogSize"}, description = "Number of the latest slow requests kept in memory")
+    private int slowlogSize = Constants.SLOWLOG_SIZE;
+
+    @Parameter(names = {"-slowlogFile"}, description = "File to append the slow requests to, one line of JSON each")
+    private String slowlogFile;
+
     public InputArguments(String[] args) {
         JCommander.newBuilder()
                 .addObject(this)
@@ -154,50 +339,126 @@ class InputArguments {
     public boolean getDebug() {
         return this.debug;
     }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public String getDataDirectory() {
+        return this.dataDirectory;
+    }
+
+    public int getSnapshotInterval() {
+        return this.snapshotInterval;
+    }
+
+    public int getIdleTimeout() {
+        return this.idleTimeout;
+    }
+
+    public String getEngine() {
+        return this.engine;
+    }
+
+    public String getStorage() {
+        return this.storage;
+    }
+
+    public List<String> getIndexes() {
+        return this.indexes;
+    }
+
+    public long getCacheSize() {
+        return this.cacheSize;
+    }
+
+    public String getStatsFile() {
+        return this.statsFile;
+    }
+
+    public int getStatsInterval() {
+        return this.statsInterval;
+    }
+
+    public long getSlowlogThreshold() {
+        return this.slowlogThreshold;
+    }
+
+    public int getSlowlogSize() {
+        return this.slowlogSize;
+    }
+
+    public String getSlowlogFile() {
+        return this.slowlogFile;
+    }
 }
 
 class handleSocket implements Runnable {
 
     private final Socket socket;
 
-    private final Map<String, String> outputMap = new LinkedHashMap<>();
+    private final Set<Socket> connections;
 
-    private final Lock writerLock;
+    private final RequestPipeline pipeline = new RequestPipeline();
 
-    private final Lock readerLock;
+    private final Semaphore inFlight = new Semaphore(Constants.MAX_IN_FLIGHT);
 
-    private final String filePath;
-
-    public handleSocket(Socket socket) {
+    public handleSocket(Socket socket, Set<Socket> connections) {
         this.socket = socket;
-        this.writerLock = Main.getWriteLock();
-        this.readerLock = Main.getReadLock();
-        this.filePath = Constants.PATH_TO_DATA;
+        this.connections = connections;
     }
 
     @Override
     public void run() {
-        parseRequest();
+        connections.add(socket);
+        try {
+            parseRequest();
+        } finally {
+            connections.remove(socket);
+        }
     }
 
+    /**
+     * Serves requests from the connection until the client closes it, stays silent for longer
+     * than the idle timeout or the server is shut down. A request without an id is answered before
+     * the next one is read. Requests carrying an id are pipelined: the next one is read right away
+     * and the response, echoing the id, is sent whenever it is ready. At most {@link Constants#MAX_IN_FLIGHT}
+     * pipelined requests of a connection are in flight at once.
+     */
     private void parseRequest() {
         try (
-                DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
-                DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream())
+                DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))
                 )
         {
-            String input = dataInputStream.readUTF();
-            if (Main.getInputArguments().getDebug()) {
-                System.out.printf("Received: %s\n", input);
-            }
-            JsonObject jsonObject = advancedParseFromJson(input);
-            handleRequest(jsonObject);
-            String output = advancedParseToJson(outputMap);
-            dataOutputStream.writeUTF(output);
-            if (Main.getInputArguments().getDebug()){
-                System.out.printf("Sent: %s\n", output);
+            socket.setSoTimeout(Main.getInputArguments().getIdleTimeout());
+            try {
+                while (!Main.isExiting()) {
+                    Request request;
+                    try {
+                        request = Frames.read(dataInputStream);
+                    } catch (EOFException | SocketTimeoutException e) {
+                        break;
+                    }
+                    if (Main.getInputArguments().getDebug()) {
+                        System.out.printf("Received: %s\n", request);
+                    }
+                    if (request.has(Constants.REQUEST_ID)) {
+                        inFlight.acquire();
+                        pipeline.submit(request, Main.getWorkers(), (r, output) -> sendResponse(dataOutputStream, r, output))
+                                .whenComplete((ignored, throwable) -> {
+                                    inFlight.release();
+                                    if (throwable != null) {
+                                        closeAfterFailure(throwable);
+                                    }
+                                });
+                    } else {
+                        pipeline.submit(request, Runnable::run, (r, output) -> sendResponse(dataOutputStream, r, output)).join();
+                    }
+                }
+            } finally {
+                pipeline.drain().join();
             }
-            clearOutputMap();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -209,245 +470,189 @@ class handleSocket implements Runnable {
         }
     }
 
-    private JsonObject advancedParseFromJson(String input) {
-        return JsonParser.parseString(input).getAsJsonObject();
+    private void closeAfterFailure(Throwable throwable) {
+        throwable.printStackTrace();
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
     }
 
-    private String parseToJson(Map<String, String> map) {
-        return new Gson().toJson(map);
+    /**
+     * Serializes the response outside the lock of the stream, so the serialize stage times the encoding
+     * alone, as it does for the non-blocking engine, and only the write itself holds back other workers.
+     */
+    private void sendResponse(DataOutputStream dataOutputStream, Request request, JsonObject output) {
+        try {
+            long serializing = System.nanoTime();
+            ByteBuffer frame = Frames.encode(output);
+            Main.getMetrics().recordResponse(request, serializing, System.nanoTime());
+            synchronized (dataOutputStream) {
+                dataOutputStream.write(frame.array(), frame.arrayOffset(), frame.remaining());
+                dataOutputStream.flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (Main.getInputArguments().getDebug()){
+            System.out.printf("Sent: %s\n", output);
+        }
     }
+}
 
-    private String fixJsonOutput(String s) {
-        String regex1 = "\\\\";
-        Pattern pattern1 = Pattern.compile(regex1);
-        Matcher matcher = pattern1.matcher(s);
-        String afterRegex1 = matcher.replaceAll("");
+/**
+ * Orders the requests of one connection. Gets carrying an id run concurrently with each other.
+ * Every other request waits for everything submitted before it and holds back everything submitted
+ * after it, so a client always observes its own writes and requests without an id are answered in order.
+ * Requests are submitted by a single thread per connection.
+ */
+class RequestPipeline {
+
+    private CompletableFuture<Void> lastBarrier = CompletableFuture.completedFuture(null);
+
+    private final List<CompletableFuture<Void>> readsSinceLastBarrier = new ArrayList<>();
+
+    /**
+     * Schedules the request on the executor and hands it along with its response to the responder
+     * once the response is ready.
+     */
+    CompletableFuture<Void> submit(Request request, Executor executor, BiConsumer<Request, JsonObject> responder) {
+        readsSinceLastBarrier.removeIf(CompletableFuture::isDone);
+        CompletableFuture<Void> future;
+        if (request.has(Constants.REQUEST_ID) && RequestHandler.isReadOnly(request)) {
+            future = lastBarrier.handle((ignored, throwable) -> request)
+                    .thenApplyAsync(r -> new RequestHandler().handle(r), executor)
+                    .thenAccept(output -> responder.accept(request, output));
+            readsSinceLastBarrier.add(future);
+        } else {
+            future = drain().handle((ignored, throwable) -> request)
+                    .thenApplyAsync(r -> new RequestHandler().handle(r), executor)
+                    .thenAccept(output -> responder.accept(request, output));
+            readsSinceLastBarrier.clear();
+            lastBarrier = future;
+        }
+        return future;
+    }
 
-        String regex2 = "\"\\{";
-        Pattern pattern2 = Pattern.compile(regex2);
-        matcher = pattern2.matcher(afterRegex1);
-        String afterRegex2 = matcher.replaceAll("{");
+    /**
+     * Returns a future completed once every request submitted so far is answered.
+     */
+    CompletableFuture<Void> drain() {
+        readsSinceLastBarrier.add(lastBarrier);
+        CompletableFuture<Void> all = CompletableFuture.allOf(readsSinceLastBarrier.toArray(new CompletableFuture<?>[0]));
+        readsSinceLastBarrier.remove(readsSinceLastBarrier.size() - 1);
+        return all.handle((ignored, throwable) -> null);
+    }
+}
 
-        String regex3 = "}\"";
-        Pattern pattern3 = Pattern.compile(regex3);
-        matcher = pattern3.matcher(afterRegex2);
-        return matcher.replaceAll("}");
+/**
+ * Handles a single request against the database and builds its response. Values are put into
+ * the response as the elements they are, so it can be streamed out without any further conversion.
+ */
+class RequestHandler {
+
+    private final JsonObject outputMap = new JsonObject();
+
+    static boolean isReadOnly(Request request) {
+        String type = request.getType();
+        return Constants.TYPE_GET.equals(type) || Constants.TYPE_FIND.equals(type) || Constants.TYPE_SCAN.equals(type)
+                || Constants.TYPE_STATS.equals(type) || Constants.TYPE_SLOWLOG.equals(type);
     }
 
-    private String advancedParseToJson(Map<String, String> map) {
-        return fixJsonOutput(parseToJson(map));
+    /**
+     * Handles the request and records the time it took to be parsed, to wait for a worker
+     * and to be executed, lock and log included, under its type and on the request.
+     */
+    JsonObject handle(Request request) {
+        Metrics metrics = Main.getMetrics();
+        long executing = System.nanoTime();
+        if (request.getReceivedAt() != 0) {
+            metrics.record(request, Metrics.Stage.PARSE, request.getDecodedAt() - request.getReceivedAt());
+            metrics.record(request, Metrics.Stage.QUEUE, executing - request.getDecodedAt());
+        }
+        metrics.handling(request);
+        try {
+            handleRequest(request);
+        } finally {
+            metrics.handling(null);
+        }
+        metrics.record(request, Metrics.Stage.EXECUTE, System.nanoTime() - executing);
+        JsonElement id = request.get(Constants.REQUEST_ID);
+        if (checkIfNotNull(id) && id.isJsonPrimitive()) {
+            outputMap.add(Constants.REQUEST_ID, id);
+        }
+        return outputMap;
     }
 
-    private void handleRequest(JsonObject jsonObject) {
-        switch (jsonObject.get("type").getAsString()) {
+    /**
+     * Answers a request without a type, or of a type that is not known, as invalid, so a bad request
+     * among pipelined ones gets an answer of its own instead of failing its whole connection.
+     */
+    private void handleRequest(Request request) {
+        String type = request.getType();
+        if (!checkIfNotNull(type)) {
+            writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
+            writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_ILLEGAL);
+            return;
+        }
+        switch (type) {
             case "get":
-                get(jsonObject.get("key"));
+                get(request.get("key"));
                 break;
             case "set":
-                set(jsonObject.get("key"), jsonObject.get("value"));
+                set(request.get("key"), request.getValue());
                 break;
             case "delete":
-                delete(jsonObject.get("key"));
+                delete(request.get("key"));
+                break;
+            case "batch":
+                batch(request.get(Constants.REQUESTS));
+                break;
+            case Constants.TYPE_FIND:
+                find(request.get("key"), request.getValue());
+                break;
+            case Constants.TYPE_SCAN:
+                scan(request);
+                break;
+            case Constants.TYPE_STATS:
+                stats();
+                break;
+            case Constants.TYPE_SLOWLOG:
+                slowlog(request.get(Constants.REQUEST_LIMIT));
                 break;
             case "exit":
                 exit();
                 break;
             default:
+                writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
+                writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_ILLEGAL);
                 break;
         }
     }
 
-    private JsonObject readFromJson(){
-        try (FileReader fileReader = new FileReader(filePath)) {
-            readerLock.lock();
-            JsonObject map = new Gson().fromJson(fileReader, JsonObject.class);
-            if(checkIfNotNull(map)) {
-                readerLock.unlock();
-                return map;
-            }
-            readerLock.unlock();
-            return new JsonObject();
-        } catch (Exception e) {
-            e.printStackTrace();
-            readerLock.unlock();
-            return null;
-        }
-    }
-
-    private int setInJson(JsonElement key, JsonElement value) {
-        if (checkIfNotNull(key) && checkIfNotNull(value)) {
-            JsonObject newData = new JsonObject();
-            if (key.isJsonArray()) {
-                JsonObject placeholder = new JsonObject();
-                JsonArray keyArray = key.getAsJsonArray();
-                int lastIndex = keyArray.size() - 1;
-                for (int i = lastIndex; i > 0; i--) {
-                    JsonElement currentKey = keyArray.get(i);
-
-                    if (i == lastIndex) {
-                        placeholder.add(currentKey.getAsString(), value);
-                    } else {
-                        JsonObject tempObject = new JsonObject();
-                        tempObject.add(currentKey.getAsString(), placeholder);
-                        placeholder = tempObject;
-                    }
-                }
-                newData.add(keyArray.get(0).getAsString(), placeholder);
-            } else {
-                newData.add(key.getAsString(), value);
-            }
-            if(writeToJson(newData)) {
-                return Constants.POSITIVE;
-            } else {
-                return Constants.ERROR;
-            }
-        }
-        return Constants.NEGATIVE;
-    }
-
-    private boolean writeToJson(JsonObject newData) {
-        try (FileReader fileReader = new FileReader(filePath)) {
-            Gson gson = new Gson();
-            writerLock.lock();
-            JsonObject map = new Gson().fromJson(fileReader, JsonObject.class);
-            if (checkIfNotNull(map)) {
-                mergeJsonObjects(map, newData);
-            } else {
-                map = newData;
-            }
-            try (FileWriter fileWriter = new FileWriter(filePath)) {
-                gson.toJson(map, fileWriter);
-            }
-            writerLock.unlock();
-            return true;
-        } catch (Exception e) {
-            e.printStackTrace();
-            writerLock.unlock();
-            return false;
-        }
-    }
-
-    private void mergeJsonObjects(JsonObject jsonObject1, JsonObject jsonObject2) {
-        for (String key : jsonObject2.keySet()) {
-            if (jsonObject2.get(key).isJsonObject() && jsonObject1.has(key) && jsonObject1.get(key).isJsonObject()) {
-                mergeJsonObjects(jsonObject1.getAsJsonObject(key), jsonObject2.getAsJsonObject(key));
-            } else {
-                jsonObject1.add(key, jsonObject2.get(key));
-            }
-        }
+    private void get (JsonElement key) {
+        writeGetResult(key, Main.getDatabase().get(key));
     }
 
-    private int deleteFromJson(JsonElement key) {
-        if (checkIfNotNull(key)) {
-            JsonObject database = readFromJson();
-            if (checkIfNotNull(database)){
-                Path path = Path.of(filePath);
-                if(key.isJsonArray()){
-                    JsonObject temp = database;
-                    JsonArray keyArray = key.getAsJsonArray();
-                    int lastIndex = keyArray.size() - 1;
-                    for (int i = 0; i < keyArray.size(); i++) {
-                        JsonElement k = keyArray.get(i);
-                        JsonElement valuePlaceholder = temp.get(k.getAsString());
-                        if (checkIfNotNull(valuePlaceholder)) {
-                            if (valuePlaceholder.isJsonPrimitive()) {
-                                if (i == lastIndex) {
-                                    if (checkIfNotNull(temp.remove(k.getAsString()))) {
-                                        try {
-                                            writerLock.lock();
-                                            Files.write(path, new byte[0]);
-                                            writerLock.unlock();
-                                            writeToJson(database);
-                                            return Constants.POSITIVE;
-                                        } catch (Exception e) {
-                                            e.printStackTrace();
-                                        }
-                                    }
-                                    return Constants.NEGATIVE;
-                                }
-                            } else {
-                                temp = temp.getAsJsonObject(k.getAsString());
-                            }
-                        } else {
-                            return Constants.NEGATIVE;
-                        }
-                    }
-                } else {
-                    if (checkIfNotNull(database.remove(key.getAsString()))) {
-                        try {
-                            writerLock.lock();
-                            Files.write(path, new byte[0]);
-                            writerLock.unlock();
-                            writeToJson(database);
-                            return Constants.POSITIVE;
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    return Constants.NEGATIVE;
-                }
-            }
-            return Constants.ERROR;
+    private void writeGetResult(JsonElement key, JsonElement value) {
+        if (checkIfNotNull(value)) {
+            writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
+            outputMap.add(Constants.RESPONSE_VALUE, value);
+        } else if (checkIfNotNull(key)) {
+            writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
+            writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_NO_KEY);
+        } else {
+            writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
+            writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_ILLEGAL);
         }
-        return Constants.ILLEGAL;
     }
 
-    private void get (JsonElement key) {
-        if (checkIfNotNull(key)) {
-           JsonObject database = readFromJson();
-            if (checkIfNotNull(database)) {
-                if (key.isJsonArray()) {
-                    JsonObject temp = database;
-                    JsonArray keyArray = key.getAsJsonArray();
-                    int lastIndex = keyArray.size() - 1;
-                    for (int i = 0; i < keyArray.size(); i++) {
-                        JsonElement k = keyArray.get(i);
-                        JsonElement valuePlaceholder = temp.get(k.getAsString());
-                        if (checkIfNotNull(valuePlaceholder)) {
-                            if (temp.get(k.getAsString()).isJsonPrimitive()) {
-                                if (i == lastIndex) {
-                                    writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
-                                    writeToOutputMap(Constants.RESPONSE_VALUE, temp.get(k.getAsString()).getAsJsonPrimitive().getAsString());
-                                    return;
-                                }
-                            } else {
-                                temp = temp.getAsJsonObject(k.getAsString());
-                            }
-                        } else {
-                            writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
-                            writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_NO_KEY);
-                            return;
-                        }
-                    }
-                    if (!Objects.equals(temp, database)) {
-                        writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
-                        writeToOutputMap(Constants.RESPONSE_VALUE, temp.toString());
-                    } else {
-                        writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
-                        writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_NO_KEY);
-                    }
-                } else {
-                    JsonElement value = database.get(key.toString());
-                    if (checkIfNotNull(value)) {
-                        writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
-                        writeToOutputMap(Constants.RESPONSE_VALUE, value.toString());
-                    } else {
-                        writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
-                        writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_NO_KEY);
-                    }
-                }
-            } else {
-                writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
-                writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_NO_KEY);
-            }
-            return;
-        }
-        writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
-        writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_ILLEGAL);
+    private void set(JsonElement key, JsonValue value) {
+        writeSetResult(Main.getDatabase().set(key, value));
     }
 
-    private void set(JsonElement key, JsonElement value) {
-        switch (setInJson(key, value)) {
+    private void writeSetResult(int result) {
+        switch (result) {
             case Constants.POSITIVE:
                 writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
                 break;
@@ -463,7 +668,11 @@ class handleSocket implements Runnable {
     }
 
     private void delete(JsonElement key) {
-        switch (deleteFromJson(key)) {
+        writeDeleteResult(Main.getDatabase().delete(key));
+    }
+
+    private void writeDeleteResult(int result) {
+        switch (result) {
             case 1:
                 writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
                 break;
@@ -483,9 +692,109 @@ class handleSocket implements Runnable {
 
     }
 
+    /**
+     * Runs the requests of a batch atomically and answers with the array of their responses,
+     * in the order of the requests.
+     */
+    private void batch(JsonElement requests) {
+        List<Database.Result> results = null;
+        if (checkIfNotNull(requests) && requests.isJsonArray()) {
+            results = Main.getDatabase().batch(requests.getAsJsonArray());
+        }
+        if (!checkIfNotNull(results)) {
+            writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
+            writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_ILLEGAL);
+            return;
+        }
+        JsonArray responses = new JsonArray();
+        for (int i = 0; i < results.size(); i++) {
+            JsonObject request = requests.getAsJsonArray().get(i).getAsJsonObject();
+            Database.Result result = results.get(i);
+            RequestHandler handler = new RequestHandler();
+            switch (request.get("type").getAsString()) {
+                case "get":
+                    handler.writeGetResult(request.get("key"), result.getValue());
+                    break;
+                case "set":
+                    handler.writeSetResult(result.getCode());
+                    break;
+                case "delete":
+                    handler.writeDeleteResult(result.getCode());
+                    break;
+            }
+            responses.add(handler.outputMap);
+        }
+        writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
+        outputMap.add(Constants.RESPONSE_VALUE, responses);
+    }
+
+    /**
+     * Answers with an object of the top-level keys whose element at the indexed path equals the value.
+     */
+    private void find(JsonElement key, JsonValue value) {
+        Database.Result result = Main.getDatabase().find(key, checkIfNotNull(value) ? value.get() : null);
+        switch (result.getCode()) {
+            case Constants.POSITIVE:
+                writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
+                outputMap.add(Constants.RESPONSE_VALUE, result.getValue());
+                break;
+            case Constants.NEGATIVE:
+                writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
+                writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_NO_INDEX);
+                break;
+            case Constants.ILLEGAL:
+                writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
+                writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_ILLEGAL);
+                break;
+        }
+    }
+
+    /**
+     * Answers with one page of the keys in order and their values, adding the cursor
+     * to send along for the next page unless this is the last one.
+     */
+    private void scan(Request request) {
+        Database.Page page = Main.getDatabase().scan(request.get(Constants.REQUEST_PREFIX),
+                request.get(Constants.REQUEST_FROM), request.get(Constants.REQUEST_TO),
+                request.get(Constants.REQUEST_LIMIT), request.get(Constants.REQUEST_CURSOR));
+        if (!checkIfNotNull(page)) {
+            writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
+            writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_ILLEGAL);
+            return;
+        }
+        writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
+        outputMap.add(Constants.RESPONSE_VALUE, page.getEntries());
+        if (checkIfNotNull(page.getCursor())) {
+            writeToOutputMap(Constants.RESPONSE_CURSOR, page.getCursor());
+        }
+    }
+
+    /**
+     * Answers with the latency histograms of every type of request and the counters of the value cache.
+     */
+    private void stats() {
+        writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
+        outputMap.add(Constants.RESPONSE_VALUE, Main.getMetrics().toJson(Main.getDatabase().getCache()));
+    }
+
+    /**
+     * Answers with the latest slow requests kept, at most the limit of them if one is given, the latest first.
+     */
+    private void slowlog(JsonElement limit) {
+        if (checkIfNotNull(limit) && (!limit.isJsonPrimitive() || !limit.getAsJsonPrimitive().isNumber()
+                || limit.getAsInt() < 0)) {
+            writeToOutputMap(Constants.RESPONSE, Constants.ERROR_MESSAGE);
+            writeToOutputMap(Constants.RESPONSE_REASON, Constants.RESPONSE_REASON_ILLEGAL);
+            return;
+        }
+        writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
+        outputMap.add(Constants.RESPONSE_VALUE,
+                Main.getSlowLog().latest(checkIfNotNull(limit) ? limit.getAsInt() : Integer.MAX_VALUE));
+    }
+
     private void exit() {
         Main.shutdownServer();
-        outputMap.put(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
+        writeToOutputMap(Constants.RESPONSE, Constants.SUCCESS_MESSAGE);
     }
 
     private boolean checkIfNotNull(Object input) {
@@ -493,11 +802,6 @@ class handleSocket implements Runnable {
     }
 
     private void writeToOutputMap(String key, String value) {
-        outputMap.put(key, value);
+        outputMap.addProperty(key, value);
     }
-
-    private void clearOutputMap() {
-        this.outputMap.clear();
-    }
-
 }
\ No newline at end of file
@@ -0,0 +1,219 @@
+package server;
+
+import com.google.gson.JsonObject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms of every type of request, one for every stage a request goes through, recorded
+ * without any lock. The stages are the wait in the queue of the workers, the parse of the frame, the
+ * wait for the stripe locks, the execution, which includes the lock wait and the wait for the log,
+ * the wait for the log record to be durable, the serialization of the response and the total time
+ * from the frame being received to the response being serialized. Snapshots are recorded as a type of
+ * their own, with the wait for all the stripes and the time to persist the checkpoint.
+ * <p>
+ * The stages of a request received off the wire are also added up on the request itself, those recorded
+ * by the database included while the request is being handled on the thread, and the request is offered
+ * to the {@link SlowLog} along with them once its response is serialized.
+ */
+class Metrics {
+
+    enum Stage {
+        QUEUE, PARSE, LOCK, EXECUTE, PERSIST, SERIALIZE, TOTAL;
+
+        String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    static final String TYPE_SNAPSHOT = "snapshot";
+
+    private static final String TYPE_OTHER = "other";
+
+    private static final String[] TYPES = {Constants.TYPE_GET, Constants.TYPE_SET, Constants.TYPE_DELETE,
+            Constants.TYPE_BATCH, Constants.TYPE_FIND, Constants.TYPE_SCAN, Constants.TYPE_STATS, Constants.TYPE_SLOWLOG, "exit", TYPE_SNAPSHOT, TYPE_OTHER};
+
+    private static final ThreadLocal<Request> HANDLING = new ThreadLocal<>();
+
+    private final Map<String, Histogram[]> histograms;
+
+    private final long startedAt = System.nanoTime();
+
+    private final SlowLog slowLog;
+
+    Metrics(SlowLog slowLog) {
+        this.slowLog = slowLog;
+        Map<String, Histogram[]> byType = new LinkedHashMap<>();
+        for (String type : TYPES) {
+            Histogram[] stages = new Histogram[Stage.values().length];
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new Histogram();
+            }
+            byType.put(type, stages);
+        }
+        histograms = Collections.unmodifiableMap(byType);
+    }
+
+    /**
+     * Records the time a stage of a request of the type took; types not known are recorded as other.
+     */
+    void record(String type, Stage stage, long nanos) {
+        Histogram[] stages = type != null ? histograms.get(type) : null;
+        (stages != null ? stages : histograms.get(TYPE_OTHER))[stage.ordinal()].record(nanos);
+        Request request = HANDLING.get();
+        if (request != null) {
+            request.addTime(stage, nanos);
+        }
+    }
+
+    /**
+     * Records the time a stage of the request took under its type and on the request itself.
+     */
+    void record(Request request, Stage stage, long nanos) {
+        Histogram[] stages = request.getType() != null ? histograms.get(request.getType()) : null;
+        (stages != null ? stages : histograms.get(TYPE_OTHER))[stage.ordinal()].record(nanos);
+        request.addTime(stage, nanos);
+    }
+
+    /**
+     * Marks the request as the one handled by the current thread, or no request when null, so the
+     * stages the database records meanwhile are added to it.
+     */
+    void handling(Request request) {
+        if (request != null) {
+            HANDLING.set(request);
+        } else {
+            HANDLING.remove();
+        }
+    }
+
+    /**
+     * Records the stages of a request timed after its response was serialized and offers it to the slow log.
+     */
+    void recordResponse(Request request, long serializingSince, long serializedAt) {
+        record(request, Stage.SERIALIZE, serializedAt - serializingSince);
+        if (request.getReceivedAt() != 0) {
+            record(request, Stage.TOTAL, serializedAt - request.getReceivedAt());
+            slowLog.offer(request, request.getStages());
+        }
+    }
+
+    /**
+     * Returns the count and the latency percentiles in microseconds of every stage that was recorded,
+     * by type of request, along with the hits and misses of the value cache.
+     */
+    JsonObject toJson(ValueCache cache) {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("uptime", (System.nanoTime() - startedAt) / 1_000_000_000);
+        stats.addProperty("unit", "microseconds");
+        JsonObject requests = new JsonObject();
+        for (Map.Entry<String, Histogram[]> type : histograms.entrySet()) {
+            JsonObject stages = new JsonObject();
+            for (Stage stage : Stage.values()) {
+                Histogram histogram = type.getValue()[stage.ordinal()];
+                if (histogram.getCount() > 0) {
+                    stages.add(stage.getName(), histogram.toJson());
+                }
+            }
+            if (stages.size() > 0) {
+                requests.add(type.getKey(), stages);
+            }
+        }
+        stats.add("requests", requests);
+        JsonObject cacheStats = new JsonObject();
+        cacheStats.addProperty("hits", cache.getHits());
+        cacheStats.addProperty("misses", cache.getMisses());
+        cacheStats.addProperty("weight", cache.getWeight());
+        cacheStats.addProperty("capacity", cache.getCapacity());
+        stats.add("cache", cacheStats);
+        return stats;
+    }
+}
+
+/**
+ * Counts latencies in buckets growing with the latency, 32 of them for every power of two, so every
+ * percentile is exact to within about 3%. Every bucket is an atomic counter, so recording takes no lock
+ * and a histogram read while being recorded to may be off by the latencies recorded meanwhile. The
+ * benchmark of the client buckets its latencies the same way, with plain counters in histograms of every
+ * caller, so the latencies it reports and those of the stats request compare.
+ */
+class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the highest latency of the bucket holding the given percentile of the latencies.
+     */
+    long percentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(max.get(), highestOf(i));
+            }
+        }
+        return max.get();
+    }
+
+    JsonObject toJson() {
+        long recorded = count.sum();
+        JsonObject json = new JsonObject();
+        json.addProperty("count", recorded);
+        json.addProperty("mean", recorded > 0 ? sum.sum() / recorded / 1000 : 0);
+        json.addProperty("p50", percentile(50) / 1000);
+        json.addProperty("p99", percentile(99) / 1000);
+        json.addProperty("p999", percentile(99.9) / 1000);
+        json.addProperty("max", max.get() / 1000);
+        return json;
+    }
+
+    /**
+     * Returns the bucket of the value: values below 64 have a bucket each, and a value of more bits
+     * shares its bucket with the values agreeing with it on the six highest bits.
+     */
+    private static int indexOf(long value) {
+        int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1);
+        return magnitude * SUB_BUCKETS + (int) (value >>> magnitude);
+    }
+
+    private static long highestOf(int index) {
+        int magnitude = Math.max(0, index / SUB_BUCKETS - 1);
+        long top = index - (long) magnitude * SUB_BUCKETS;
+        return ((top + 1) << magnitude) - 1;
+    }
+}
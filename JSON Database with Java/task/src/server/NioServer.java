@@ -0,0 +1,314 @@
+package server;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves every connection from a single event loop thread around a {@link Selector}. The loop only
+ * moves bytes: complete requests are handed to the worker pool through the connection's
+ * {@link RequestPipeline}, and workers hand their responses back to the loop to be written.
+ * Idle connections therefore cost a buffer and a selection key, not a thread.
+ */
+class NioServer implements ServerEngine {
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final Set<NioConnection> connections = new HashSet<>();
+
+    private volatile Selector selector;
+
+    private long nextIdleCheck = 0;
+
+    @Override
+    public void serve() throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(Constants.ADDRESS, Main.getInputArguments().getPort()), Constants.BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Server started!");
+
+            long deadline = Long.MAX_VALUE;
+            while (true) {
+                if (Main.isExiting() && deadline == Long.MAX_VALUE) {
+                    serverChannel.close();
+                    for (NioConnection connection : new ArrayList<>(connections)) {
+                        connection.stopReading();
+                    }
+                    deadline = System.currentTimeMillis() + Constants.SHUTDOWN_TIMEOUT * 1000L;
+                }
+                if (deadline != Long.MAX_VALUE && (connections.isEmpty() || System.currentTimeMillis() > deadline)) {
+                    break;
+                }
+                selector.select(Constants.SELECT_TIMEOUT);
+                runTasks();
+                for (Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext(); ) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                    } else {
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                }
+                closeIdleConnections();
+            }
+        } finally {
+            for (NioConnection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+            selector.close();
+        }
+    }
+
+    @Override
+    public void stop() {
+        wakeup();
+    }
+
+    /**
+     * Runs the task on the event loop thread, which owns the connections and their selection keys.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    void remove(NioConnection connection) {
+        connections.remove(connection);
+    }
+
+    private void wakeup() {
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            NioConnection connection = new NioConnection(this, channel);
+            connection.register(selector);
+            connections.add(connection);
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now < nextIdleCheck) {
+            return;
+        }
+        nextIdleCheck = now + Constants.SELECT_TIMEOUT;
+        long idleSince = now - Main.getInputArguments().getIdleTimeout();
+        for (NioConnection connection : new ArrayList<>(connections)) {
+            if (connection.isIdleSince(idleSince)) {
+                connection.close();
+            }
+        }
+    }
+}
+
+/**
+ * One client connection of the {@link NioServer}. Every method but {@link #send} runs on the event loop.
+ */
+class NioConnection {
+
+    private final NioServer server;
+
+    private final SocketChannel channel;
+
+    private final RequestPipeline pipeline = new RequestPipeline();
+
+    private final Deque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(Constants.READ_BUFFER_SIZE);
+
+    private SelectionKey key;
+
+    private int inFlight = 0;
+
+    private boolean inputClosed = false;
+
+    private long lastActive = System.currentTimeMillis();
+
+    NioConnection(NioServer server, SocketChannel channel) {
+        this.server = server;
+        this.channel = channel;
+    }
+
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    void onReadable() {
+        try {
+            if (!readBuffer.hasRemaining()) {
+                readBuffer = resize(readBuffer, readBuffer.capacity() * 2);
+            }
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                stopReading();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            readBuffer.flip();
+            Request request;
+            try {
+                while (!inputClosed && (request = Frames.decode(readBuffer)) != null) {
+                    if (Main.getInputArguments().getDebug()) {
+                        System.out.printf("Received: %s\n", request);
+                    }
+                    submit(request);
+                }
+            } catch (IOException | RuntimeException e) {
+                // a frame that cannot be decoded ends the connection, as with the blocking engine,
+                // but only once the requests read before it are answered
+                e.printStackTrace();
+                stopReading();
+                return;
+            }
+            int nextFrameSize = Frames.sizeOfNext(readBuffer);
+            readBuffer.compact();
+            if (nextFrameSize > readBuffer.capacity()) {
+                readBuffer = resize(readBuffer, nextFrameSize);
+            } else if (readBuffer.position() == 0 && readBuffer.capacity() > Constants.READ_BUFFER_SIZE) {
+                readBuffer = ByteBuffer.allocate(Constants.READ_BUFFER_SIZE);
+            }
+        } catch (IOException e) {
+            close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    private void submit(Request request) {
+        inFlight++;
+        if (inFlight >= Constants.MAX_IN_FLIGHT) {
+            updateInterest();
+        }
+        pipeline.submit(request, Main.getWorkers(), this::send)
+                .whenComplete((ignored, throwable) -> server.execute(() -> {
+                    inFlight--;
+                    if (throwable != null) {
+                        throwable.printStackTrace();
+                        close();
+                    } else {
+                        updateInterest();
+                    }
+                }));
+    }
+
+    /**
+     * Queues a response; called by the workers.
+     */
+    private void send(Request request, JsonObject output) {
+        ByteBuffer frame;
+        long serializing = System.nanoTime();
+        try {
+            frame = Frames.encode(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Main.getMetrics().recordResponse(request, serializing, System.nanoTime());
+        server.execute(() -> {
+            writeQueue.add(frame);
+            updateInterest();
+        });
+        if (Main.getInputArguments().getDebug()) {
+            System.out.printf("Sent: %s\n", output);
+        }
+    }
+
+    void onWritable() {
+        try {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer buffer = writeQueue.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                writeQueue.poll();
+            }
+            lastActive = System.currentTimeMillis();
+            updateInterest();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Stops taking requests from the connection, which is closed once its requests in flight are answered.
+     */
+    void stopReading() {
+        inputClosed = true;
+        updateInterest();
+    }
+
+    boolean isIdleSince(long time) {
+        return inFlight == 0 && writeQueue.isEmpty() && lastActive < time;
+    }
+
+    private void updateInterest() {
+        if (!key.isValid()) {
+            return;
+        }
+        if (inputClosed && inFlight == 0 && writeQueue.isEmpty()) {
+            close();
+            return;
+        }
+        int interest = 0;
+        if (!inputClosed && inFlight < Constants.MAX_IN_FLIGHT) {
+            interest |= SelectionKey.OP_READ;
+        }
+        if (!writeQueue.isEmpty()) {
+            interest |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(interest);
+    }
+
+    void close() {
+        server.remove(this);
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Moves the bytes of a buffer in write mode to a new buffer of the capacity, which the frame
+     * being received may need to grow to, or shrink back to once a large frame was handled.
+     */
+    private static ByteBuffer resize(ByteBuffer buffer, int capacity) {
+        ByteBuffer resized = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        resized.put(buffer);
+        return resized;
+    }
+}
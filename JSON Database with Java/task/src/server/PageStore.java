@@ -0,0 +1,432 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A storage engine keeping every top-level key and its value as a blob in fixed-size pages of a single
+ * file, which is mapped into memory with {@link FileChannel#map} a chunk at a time and left to the page
+ * cache of the operating system. A blob starts on a head page holding its lsn, its length and a CRC32 and
+ * goes on over a chain of continuation pages. Pages no blob uses are kept in a free list.
+ * <p>
+ * A checkpoint only writes the blobs of the keys changed since the previous one, found by comparing the
+ * values of both versions of the document by identity, and a tombstone blob for every deleted key. The
+ * new blobs go to free pages, so a crash never leaves a key without an intact blob. Once they are forced
+ * to disk the lsn of the checkpoint is written to the file header, and only then are the head pages of the
+ * blobs they replace cleared and their pages freed for the next checkpoint. Loading picks the blob with the
+ * highest lsn not newer than the header for every key, which needs neither JSON parsing nor rewriting the
+ * file, as the values are kept as the bytes they are stored as.
+ */
+class PageStore implements StorageEngine {
+
+    private static final String FILE_NAME = "pages.db";
+
+    private static final int PAGE_SIZE = 4096;
+
+    private static final int CHUNK_PAGES = 4096;
+
+    private static final long CHUNK_SIZE = (long) PAGE_SIZE * CHUNK_PAGES;
+
+    private static final int MAGIC = 0x4A534442;
+
+    private static final int HEADER_SLOT_SIZE = PAGE_SIZE / 2;
+
+    private static final int FREE = 0;
+
+    private static final int HEAD = 1;
+
+    private static final int CONTINUATION = 2;
+
+    private static final int PAGE_HEADER_SIZE = 8;
+
+    private static final int HEAD_HEADER_SIZE = PAGE_HEADER_SIZE + 16;
+
+    private final Path path;
+
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    private final Set<Integer> dirtyChunks = new TreeSet<>();
+
+    private final BitSet freePages = new BitSet();
+
+    private final Map<String, Blob> blobs = new HashMap<>();
+
+    private FileChannel channel;
+
+    private PersistentMap<String, JsonValue> checkpointed = PersistentMap.empty();
+
+    private int headerSlot = 0;
+
+    /**
+     * Whether the file holds the checkpoint the next one is written on top of; when the document
+     * was loaded from elsewhere, the next checkpoint starts the file over.
+     */
+    private boolean current = false;
+
+    PageStore(Path directory) {
+        this.path = directory.resolve(FILE_NAME);
+    }
+
+    @Override
+    public long latestLsn() throws IOException {
+        if (!Files.exists(path)) {
+            return NO_CHECKPOINT;
+        }
+        byte[] bytes = new byte[PAGE_SIZE];
+        ByteBuffer header;
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            header = ByteBuffer.wrap(bytes, 0, inputStream.readNBytes(bytes, 0, PAGE_SIZE));
+        }
+        return Math.max(readHeaderSlot(header, 0), readHeaderSlot(header, 1));
+    }
+
+    /**
+     * Maps the file and loads the blob of every key with the highest lsn the header covers. The head pages
+     * of all the other blobs are cleared, those of tombstones last, so none of them is taken for a live one
+     * after the next crash, and every page outside of the loaded blobs is free.
+     */
+    @Override
+    public Snapshot load() throws IOException {
+        open();
+        ByteBuffer header = chunks.get(0);
+        long lsn = Math.max(readHeaderSlot(header, 0), readHeaderSlot(header, 1));
+        headerSlot = readHeaderSlot(header, 0) == lsn ? 0 : 1;
+        Map<String, Blob> latest = new HashMap<>();
+        List<Blob> stale = new ArrayList<>();
+        List<Integer> invalid = new ArrayList<>();
+        for (int page = 1; page < pageCount(); page++) {
+            if (kindOf(page) != HEAD) {
+                continue;
+            }
+            Blob blob = readBlob(page);
+            if (blob == null || blob.lsn > lsn) {
+                invalid.add(page);
+                continue;
+            }
+            Blob other = latest.get(blob.key);
+            if (other == null || blob.lsn > other.lsn) {
+                latest.put(blob.key, blob);
+                if (other != null) {
+                    stale.add(other);
+                }
+            } else {
+                stale.add(blob);
+            }
+        }
+        for (int page : invalid) {
+            clearHead(page);
+        }
+        clearHeads(stale);
+        forceDirtyChunks();
+        List<Blob> tombstones = new ArrayList<>();
+        PersistentMap<String, JsonValue> document = PersistentMap.empty();
+        freePages.set(1, pageCount());
+        for (Blob blob : latest.values()) {
+            if (blob.value == null) {
+                tombstones.add(blob);
+                continue;
+            }
+            document = document.put(blob.key, JsonValue.raw(blob.value, 0, blob.value.length));
+            blob.value = null;
+            blobs.put(blob.key, blob);
+            for (int page : blob.pages) {
+                freePages.clear(page);
+            }
+        }
+        clearHeads(tombstones);
+        forceDirtyChunks();
+        checkpointed = document;
+        current = true;
+        return new Snapshot(lsn, document);
+    }
+
+    @Override
+    public void write(long lsn, PersistentMap<String, JsonValue> document) throws IOException {
+        if (!current) {
+            reset();
+        }
+        List<Blob> replaced = new ArrayList<>();
+        List<Blob> tombstones = new ArrayList<>();
+        for (Map.Entry<String, JsonValue> entry : document) {
+            if (checkpointed.get(entry.getKey()) != entry.getValue()) {
+                Blob old = blobs.put(entry.getKey(), writeBlob(entry.getKey(), lsn, entry.getValue()));
+                if (old != null) {
+                    replaced.add(old);
+                }
+            }
+        }
+        for (Map.Entry<String, JsonValue> entry : checkpointed) {
+            if (document.get(entry.getKey()) == null) {
+                tombstones.add(writeBlob(entry.getKey(), lsn, null));
+                replaced.add(blobs.remove(entry.getKey()));
+            }
+        }
+        forceDirtyChunks();
+        writeHeader(lsn);
+        forceDirtyChunks();
+        clearHeads(replaced);
+        forceDirtyChunks();
+        clearHeads(tombstones);
+        forceDirtyChunks();
+        for (Blob blob : replaced) {
+            release(blob);
+        }
+        for (Blob blob : tombstones) {
+            release(blob);
+        }
+        checkpointed = document;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            chunks.clear();
+        }
+    }
+
+    private void open() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        Files.createDirectories(path.getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long chunkCount = Math.max(1, (channel.size() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int i = 0; i < chunkCount; i++) {
+            chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, i * CHUNK_SIZE, CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * Starts the file over, empty, dropping whatever an earlier run left in it. The file is cleared in place
+     * rather than deleted, as its chunks may still be mapped: first the header, so a crash from here on leaves
+     * no checkpoint in the file at all, then the head of every blob.
+     */
+    private void reset() throws IOException {
+        open();
+        ByteBuffer header = chunks.get(0);
+        for (int slot = 0; slot < 2; slot++) {
+            header.putInt(slot * HEADER_SLOT_SIZE, 0);
+        }
+        dirtyChunks.add(0);
+        forceDirtyChunks();
+        for (int page = 1; page < pageCount(); page++) {
+            if (kindOf(page) != FREE) {
+                clearHead(page);
+            }
+        }
+        forceDirtyChunks();
+        blobs.clear();
+        freePages.clear();
+        freePages.set(1, pageCount());
+        checkpointed = PersistentMap.empty();
+        headerSlot = 0;
+        current = true;
+    }
+
+    private int pageCount() {
+        return chunks.size() * CHUNK_PAGES;
+    }
+
+    private ByteBuffer chunkOf(int page) {
+        return chunks.get(page / CHUNK_PAGES);
+    }
+
+    private static int offsetOf(int page) {
+        return (page % CHUNK_PAGES) * PAGE_SIZE;
+    }
+
+    private int kindOf(int page) {
+        return chunkOf(page).getInt(offsetOf(page));
+    }
+
+    private static long readHeaderSlot(ByteBuffer header, int slot) {
+        int offset = slot * HEADER_SLOT_SIZE;
+        if (header.limit() < offset + 20 || header.getInt(offset) != MAGIC || header.getInt(offset + 4) != PAGE_SIZE) {
+            return NO_CHECKPOINT;
+        }
+        long lsn = header.getLong(offset + 8);
+        CRC32 crc = new CRC32();
+        crc.update(header.duplicate().position(offset).limit(offset + 16));
+        return (int) crc.getValue() == header.getInt(offset + 16) ? lsn : NO_CHECKPOINT;
+    }
+
+    /**
+     * Writes the lsn to the header slot not holding the current one, so a torn write leaves the other intact.
+     */
+    private void writeHeader(long lsn) {
+        headerSlot = 1 - headerSlot;
+        int offset = headerSlot * HEADER_SLOT_SIZE;
+        ByteBuffer header = chunks.get(0);
+        header.putInt(offset, MAGIC).putInt(offset + 4, PAGE_SIZE).putLong(offset + 8, lsn);
+        CRC32 crc = new CRC32();
+        crc.update(header.duplicate().position(offset).limit(offset + 16));
+        header.putInt(offset + 16, (int) crc.getValue());
+        dirtyChunks.add(0);
+    }
+
+    /**
+     * Reads the blob starting at the head page, or returns null when its chain or checksum is broken.
+     */
+    private Blob readBlob(int head) {
+        ByteBuffer chunk = chunkOf(head);
+        int offset = offsetOf(head);
+        long lsn = chunk.getLong(offset + PAGE_HEADER_SIZE);
+        int length = chunk.getInt(offset + PAGE_HEADER_SIZE + 8);
+        int checksum = chunk.getInt(offset + PAGE_HEADER_SIZE + 12);
+        if (length < Integer.BYTES + 1 || pagesFor(length) > pageCount()) {
+            return null;
+        }
+        int[] pages = new int[pagesFor(length)];
+        byte[] payload = new byte[length];
+        int page = head;
+        int position = 0;
+        for (int i = 0; i < pages.length; i++) {
+            if (page <= 0 || page >= pageCount() || kindOf(page) != (i == 0 ? HEAD : CONTINUATION)) {
+                return null;
+            }
+            pages[i] = page;
+            int dataOffset = offsetOf(page) + (i == 0 ? HEAD_HEADER_SIZE : PAGE_HEADER_SIZE);
+            int count = Math.min(length - position, PAGE_SIZE - (dataOffset - offsetOf(page)));
+            chunkOf(page).get(dataOffset, payload, position, count);
+            position += count;
+            page = chunkOf(page).getInt(offsetOf(page) + Integer.BYTES);
+        }
+        if (checksum(lsn, payload) != checksum) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int keyLength = buffer.getInt();
+        if (keyLength < 0 || keyLength > length - Integer.BYTES - 1) {
+            return null;
+        }
+        String key = new String(payload, Integer.BYTES, keyLength, StandardCharsets.UTF_8);
+        byte[] value = null;
+        if (payload[Integer.BYTES + keyLength] == 0) {
+            value = Arrays.copyOfRange(payload, Integer.BYTES + keyLength + 1, length);
+        }
+        return new Blob(key, lsn, pages, value);
+    }
+
+    /**
+     * Writes the key and its value, or a tombstone when the value is null, to free pages.
+     */
+    private Blob writeBlob(String key, long lsn, JsonValue value) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(payload);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        dataOutputStream.writeInt(keyBytes.length);
+        dataOutputStream.write(keyBytes);
+        dataOutputStream.writeByte(value == null ? 1 : 0);
+        if (value != null) {
+            value.writeTo(payload);
+        }
+        byte[] bytes = payload.toByteArray();
+        int[] pages = new int[pagesFor(bytes.length)];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = allocate();
+        }
+        int position = 0;
+        for (int i = 0; i < pages.length; i++) {
+            ByteBuffer chunk = chunkOf(pages[i]);
+            int offset = offsetOf(pages[i]);
+            chunk.putInt(offset, i == 0 ? HEAD : CONTINUATION);
+            chunk.putInt(offset + Integer.BYTES, i + 1 < pages.length ? pages[i + 1] : 0);
+            int dataOffset = offset + PAGE_HEADER_SIZE;
+            if (i == 0) {
+                chunk.putLong(dataOffset, lsn).putInt(dataOffset + 8, bytes.length).putInt(dataOffset + 12, checksum(lsn, bytes));
+                dataOffset = offset + HEAD_HEADER_SIZE;
+            }
+            int count = Math.min(bytes.length - position, PAGE_SIZE - (dataOffset - offset));
+            chunk.put(dataOffset, bytes, position, count);
+            position += count;
+            dirtyChunks.add(pages[i] / CHUNK_PAGES);
+        }
+        return new Blob(key, lsn, pages, null);
+    }
+
+    private static int pagesFor(int length) {
+        int rest = length - (PAGE_SIZE - HEAD_HEADER_SIZE);
+        return rest <= 0 ? 1 : 1 + (rest + PAGE_SIZE - PAGE_HEADER_SIZE - 1) / (PAGE_SIZE - PAGE_HEADER_SIZE);
+    }
+
+    /**
+     * Takes the lowest free page, mapping another chunk of the file when there is none.
+     */
+    private int allocate() throws IOException {
+        int page = freePages.nextSetBit(1);
+        if (page < 0) {
+            int chunk = chunks.size();
+            chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, chunk * CHUNK_SIZE, CHUNK_SIZE));
+            freePages.set(chunk * CHUNK_PAGES, (chunk + 1) * CHUNK_PAGES);
+            page = chunk * CHUNK_PAGES;
+        }
+        freePages.clear(page);
+        return page;
+    }
+
+    private void release(Blob blob) {
+        for (int page : blob.pages) {
+            freePages.set(page);
+        }
+    }
+
+    private void clearHeads(List<Blob> cleared) {
+        for (Blob blob : cleared) {
+            clearHead(blob.pages[0]);
+        }
+    }
+
+    private void clearHead(int page) {
+        chunkOf(page).putInt(offsetOf(page), FREE);
+        dirtyChunks.add(page / CHUNK_PAGES);
+    }
+
+    private void forceDirtyChunks() {
+        for (int chunk : dirtyChunks) {
+            chunks.get(chunk).force();
+        }
+        dirtyChunks.clear();
+    }
+
+    private static int checksum(long lsn, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, lsn));
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Where the blob of a key lives. The value is only held while the file is being loaded,
+     * and is null for a tombstone.
+     */
+    private static class Blob {
+
+        private final String key;
+
+        private final long lsn;
+
+        private final int[] pages;
+
+        private byte[] value;
+
+        Blob(String key, long lsn, int[] pages, byte[] value) {
+            this.key = key;
+            this.lsn = lsn;
+            this.pages = pages;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package server;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable hash array mapped trie. Every put and remove returns a new map which shares all
+ * the nodes off the path to the changed entry with the old one, so a map once handed out never
+ * changes and can be read by any number of threads without locking.
+ * <p>
+ * Each level consumes five bits of the hash: a node keeps a 32 bit bitmap of the slots in use and
+ * an array holding only those slots, each of them an entry or a node of the next level. Keys with
+ * the very same hash end up together in a collision node.
+ */
+class PersistentMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+    private static final int BITS = 5;
+
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(new BitmapNode<>(0, new Object[0]), 0);
+
+    private final Node<K, V> root;
+
+    private final int size;
+
+    private PersistentMap(Node<K, V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * Returns the value of the key, or null when the map has no such key.
+     */
+    V get(K key) {
+        return root.get(0, hashOf(key), key);
+    }
+
+    PersistentMap<K, V> put(K key, V value) {
+        Objects.requireNonNull(value);
+        boolean present = get(key) != null;
+        Node<K, V> newRoot = root.put(0, new Entry<>(hashOf(key), key, value));
+        return newRoot == root ? this : new PersistentMap<>(newRoot, present ? size : size + 1);
+    }
+
+    PersistentMap<K, V> remove(K key) {
+        Node<K, V> newRoot = root.remove(0, hashOf(key), key);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? empty() : new PersistentMap<>(newRoot, size - 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach(action);
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator<>(root);
+    }
+
+    private static int hashOf(Object key) {
+        int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int indexOf(int hash, int shift) {
+        return (hash >>> shift) & MASK;
+    }
+
+    private interface Node<K, V> {
+
+        V get(int shift, int hash, K key);
+
+        /**
+         * Returns the node with the entry added, or this node when it already holds the very same entry.
+         */
+        Node<K, V> put(int shift, Entry<K, V> entry);
+
+        /**
+         * Returns the node without the key, this node when it has no such key, or null when nothing is left.
+         */
+        Node<K, V> remove(int shift, int hash, K key);
+
+        void forEach(BiConsumer<? super K, ? super V> action);
+
+        /**
+         * Returns the only entry of a node holding a single entry, so its parent can keep it inline.
+         */
+        Entry<K, V> singleEntry();
+    }
+
+    private static class Entry<K, V> implements Map.Entry<K, V> {
+
+        private final int hash;
+
+        private final K key;
+
+        private final V value;
+
+        Entry(int hash, K key, V value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Walks the trie depth first, keeping the path to the current entry on a stack.
+     */
+    private static class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+
+        private final Deque<Object[]> slotStack = new ArrayDeque<>();
+
+        private final Deque<Integer> indexStack = new ArrayDeque<>();
+
+        private Entry<K, V> next;
+
+        EntryIterator(Node<K, V> root) {
+            push(root);
+            advance();
+        }
+
+        private void push(Node<K, V> node) {
+            slotStack.push(node instanceof BitmapNode ? ((BitmapNode<K, V>) node).slots : ((CollisionNode<K, V>) node).entries);
+            indexStack.push(0);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (!slotStack.isEmpty()) {
+                Object[] slots = slotStack.peek();
+                int index = indexStack.pop();
+                if (index == slots.length) {
+                    slotStack.pop();
+                    continue;
+                }
+                indexStack.push(index + 1);
+                if (slots[index] instanceof Entry) {
+                    next = (Entry<K, V>) slots[index];
+                    return;
+                }
+                push((Node<K, V>) slots[index]);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<K, V> current = next;
+            advance();
+            return current;
+        }
+    }
+
+    private static class BitmapNode<K, V> implements Node<K, V> {
+
+        private final int bitmap;
+
+        private final Object[] slots;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private int slotOf(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V get(int shift, int hash, K key) {
+            int bit = 1 << indexOf(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = slots[slotOf(bit)];
+            if (slot instanceof Entry) {
+                Entry<K, V> entry = (Entry<K, V>) slot;
+                return entry.key.equals(key) ? entry.value : null;
+            }
+            return ((Node<K, V>) slot).get(shift + BITS, hash, key);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Node<K, V> put(int shift, Entry<K, V> entry) {
+            int bit = 1 << indexOf(entry.hash, shift);
+            int index = slotOf(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, index);
+                newSlots[index] = entry;
+                System.arraycopy(slots, index, newSlots, index + 1, slots.length - index);
+                return new BitmapNode<>(bitmap | bit, newSlots);
+            }
+            Object slot = slots[index];
+            Object newSlot;
+            if (slot instanceof Entry) {
+                Entry<K, V> existing = (Entry<K, V>) slot;
+                if (existing.key.equals(entry.key)) {
+                    if (existing.value == entry.value) {
+                        return this;
+                    }
+                    newSlot = entry;
+                } else {
+                    newSlot = merge(shift + BITS, existing, entry);
+                }
+            } else {
+                Node<K, V> node = (Node<K, V>) slot;
+                newSlot = node.put(shift + BITS, entry);
+                if (newSlot == node) {
+                    return this;
+                }
+            }
+            Object[] newSlots = slots.clone();
+            newSlots[index] = newSlot;
+            return new BitmapNode<>(bitmap, newSlots);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Node<K, V> remove(int shift, int hash, K key) {
+            int bit = 1 << indexOf(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = slotOf(bit);
+            Object slot = slots[index];
+            if (slot instanceof Entry) {
+                if (!((Entry<K, V>) slot).key.equals(key)) {
+                    return this;
+                }
+                return without(bit, index);
+            }
+            Node<K, V> node = (Node<K, V>) slot;
+            Node<K, V> newNode = node.remove(shift + BITS, hash, key);
+            if (newNode == node) {
+                return this;
+            }
+            if (newNode == null) {
+                return without(bit, index);
+            }
+            Entry<K, V> single = newNode.singleEntry();
+            Object[] newSlots = slots.clone();
+            newSlots[index] = single != null ? single : newNode;
+            return new BitmapNode<>(bitmap, newSlots);
+        }
+
+        private Node<K, V> without(int bit, int index) {
+            if (slots.length == 1) {
+                return null;
+            }
+            Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, index);
+            System.arraycopy(slots, index + 1, newSlots, index, slots.length - index - 1);
+            return new BitmapNode<>(bitmap & ~bit, newSlots);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void forEach(BiConsumer<? super K, ? super V> action) {
+            for (Object slot : slots) {
+                if (slot instanceof Entry) {
+                    Entry<K, V> entry = (Entry<K, V>) slot;
+                    action.accept(entry.key, entry.value);
+                } else {
+                    ((Node<K, V>) slot).forEach(action);
+                }
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<K, V> singleEntry() {
+            return slots.length == 1 && slots[0] instanceof Entry ? (Entry<K, V>) slots[0] : null;
+        }
+
+        /**
+         * Builds the subtree holding two entries whose hashes matched on all the levels above the shift.
+         */
+        @SuppressWarnings("unchecked")
+        private static <K, V> Node<K, V> merge(int shift, Entry<K, V> first, Entry<K, V> second) {
+            if (first.hash == second.hash) {
+                return new CollisionNode<>(first.hash, new Entry[]{first, second});
+            }
+            int firstIndex = indexOf(first.hash, shift);
+            int secondIndex = indexOf(second.hash, shift);
+            if (firstIndex == secondIndex) {
+                return new BitmapNode<>(1 << firstIndex, new Object[]{merge(shift + BITS, first, second)});
+            }
+            Object[] slots = firstIndex < secondIndex ? new Object[]{first, second} : new Object[]{second, first};
+            return new BitmapNode<>((1 << firstIndex) | (1 << secondIndex), slots);
+        }
+    }
+
+    private static class CollisionNode<K, V> implements Node<K, V> {
+
+        private final int hash;
+
+        private final Entry<K, V>[] entries;
+
+        CollisionNode(int hash, Entry<K, V>[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        private int find(K key) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key.equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public V get(int shift, int hash, K key) {
+            int index = this.hash == hash ? find(key) : -1;
+            return index < 0 ? null : entries[index].value;
+        }
+
+        @Override
+        public Node<K, V> put(int shift, Entry<K, V> entry) {
+            if (entry.hash != hash) {
+                BitmapNode<K, V> node = new BitmapNode<>(1 << indexOf(hash, shift), new Object[]{this});
+                return node.put(shift, entry);
+            }
+            int index = find(entry.key);
+            if (index >= 0 && entries[index].value == entry.value) {
+                return this;
+            }
+            Entry<K, V>[] newEntries;
+            if (index >= 0) {
+                newEntries = entries.clone();
+                newEntries[index] = entry;
+            } else {
+                newEntries = Arrays.copyOf(entries, entries.length + 1);
+                newEntries[entries.length] = entry;
+            }
+            return new CollisionNode<>(hash, newEntries);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Node<K, V> remove(int shift, int hash, K key) {
+            int index = this.hash == hash ? find(key) : -1;
+            if (index < 0) {
+                return this;
+            }
+            if (entries.length == 1) {
+                return null;
+            }
+            Entry<K, V>[] newEntries = new Entry[entries.length - 1];
+            System.arraycopy(entries, 0, newEntries, 0, index);
+            System.arraycopy(entries, index + 1, newEntries, index, entries.length - index - 1);
+            return new CollisionNode<>(hash, newEntries);
+        }
+
+        @Override
+        public void forEach(BiConsumer<? super K, ? super V> action) {
+            for (Entry<K, V> entry : entries) {
+                action.accept(entry.key, entry.value);
+            }
+        }
+
+        @Override
+        public Entry<K, V> singleEntry() {
+            return entries.length == 1 ? entries[0] : null;
+        }
+    }
+}
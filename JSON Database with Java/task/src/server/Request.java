@@ -0,0 +1,299 @@
+package server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A request as received on the wire. Only its envelope, the small members such as the type, the key and
+ * the id, is parsed into elements. The value of a set is left in the bytes of the frame as a {@link JsonValue},
+ * so a large value is neither turned into a tree of elements nor serialized again on its way to the log.
+ */
+class Request {
+
+    /**
+     * Members up to this many bytes are decoded into a string before they are parsed, which costs far less
+     * than the buffers a streaming decoder sets up; only larger ones, values mostly, are streamed.
+     */
+    private static final int STRING_DECODE_LIMIT = 8192;
+
+    private final JsonObject envelope;
+
+    private final JsonValue value;
+
+    private long receivedAt;
+
+    private long decodedAt;
+
+    private int size;
+
+    private long[] stages;
+
+    Request(JsonObject envelope, JsonValue value) {
+        this.envelope = envelope;
+        this.value = value;
+    }
+
+    /**
+     * Wraps a request that was parsed as a whole, such as one of the requests of a batch.
+     */
+    static Request of(JsonObject request) {
+        JsonElement value = request.get(Constants.REQUEST_VALUE);
+        return new Request(request, value != null ? JsonValue.parsed(value) : null);
+    }
+
+    /**
+     * Decodes the request object held by the bytes. The value is only scanned for its end and checked
+     * to be valid JSON; a value only accepted by the lenient parser is parsed right away instead.
+     */
+    static Request decode(byte[] bytes, int offset, int length) {
+        Scanner scanner = new Scanner(bytes, offset, offset + length);
+        JsonObject envelope = new JsonObject();
+        JsonValue value = null;
+        scanner.expect('{');
+        if (!scanner.consume('}')) {
+            do {
+                String name = scanner.name();
+                scanner.expect(':');
+                int start = scanner.skipValue();
+                if (Constants.REQUEST_VALUE.equals(name)) {
+                    value = toValue(bytes, start, scanner.position - start);
+                } else {
+                    envelope.add(name, JsonParser.parseReader(readerOf(bytes, start, scanner.position - start)));
+                }
+            } while (scanner.consume(','));
+            scanner.expect('}');
+        }
+        scanner.expectEnd();
+        return new Request(envelope, value);
+    }
+
+    private static JsonValue toValue(byte[] bytes, int offset, int length) {
+        try (JsonReader jsonReader = new JsonReader(readerOf(bytes, offset, length))) {
+            jsonReader.skipValue();
+            if (jsonReader.peek() == JsonToken.END_DOCUMENT) {
+                return JsonValue.raw(bytes, offset, length);
+            }
+        } catch (IOException | RuntimeException e) {
+            // not strictly valid, left to the lenient parser below
+        }
+        return JsonValue.parsed(JsonParser.parseReader(readerOf(bytes, offset, length)));
+    }
+
+    private static Reader readerOf(byte[] bytes, int offset, int length) {
+        if (length <= STRING_DECODE_LIMIT) {
+            return new StringReader(new String(bytes, offset, length, StandardCharsets.UTF_8));
+        }
+        return new InputStreamReader(new ByteArrayInputStream(bytes, offset, length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Marks the request as received off the wire in a frame of the given size at the given
+     * {@link System#nanoTime()} and decoded now, so the time it spends being parsed and then waiting
+     * for a worker can be recorded, and starts adding up the time of each of its stages.
+     */
+    Request received(long receivedAt, int size) {
+        this.receivedAt = receivedAt;
+        this.decodedAt = System.nanoTime();
+        this.size = size;
+        this.stages = new long[Metrics.Stage.values().length];
+        return this;
+    }
+
+    /**
+     * Returns when the request was received, or zero for a request that did not come off the wire.
+     */
+    long getReceivedAt() {
+        return receivedAt;
+    }
+
+    long getDecodedAt() {
+        return decodedAt;
+    }
+
+    /**
+     * Returns the size of the frame the request was received in, header excluded.
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Adds to the time of a stage of a request received off the wire; only one thread handles a request at a time.
+     */
+    void addTime(Metrics.Stage stage, long nanos) {
+        if (stages != null) {
+            stages[stage.ordinal()] += nanos;
+        }
+    }
+
+    /**
+     * Returns the nanoseconds spent in every stage, by ordinal, or null for a request that did not come off the wire.
+     */
+    long[] getStages() {
+        return stages;
+    }
+
+    /**
+     * Returns the type of the request, or null when it has none or it is not a string.
+     */
+    String getType() {
+        JsonElement type = envelope.get("type");
+        return type != null && type.isJsonPrimitive() ? type.getAsString() : null;
+    }
+
+    JsonElement get(String member) {
+        return envelope.get(member);
+    }
+
+    boolean has(String member) {
+        return envelope.has(member);
+    }
+
+    /**
+     * Returns the value of the request, or null when it has none.
+     */
+    JsonValue getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        if (value == null || envelope.has(Constants.REQUEST_VALUE)) {
+            return envelope.toString();
+        }
+        String members = envelope.toString();
+        return members.substring(0, members.length() - 1) + (envelope.size() > 0 ? "," : "")
+                + "\"" + Constants.REQUEST_VALUE + "\":" + value + "}";
+    }
+
+    /**
+     * Finds the bounds of the members of a JSON object, skipping over their values
+     * without looking into them any further than needed to find where they end.
+     */
+    private static class Scanner {
+
+        private final byte[] bytes;
+
+        private final int end;
+
+        private int position;
+
+        Scanner(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        void expect(char expected) {
+            if (!consume(expected)) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        boolean consume(char expected) {
+            skipWhitespace();
+            if (position < end && bytes[position] == expected) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        void expectEnd() {
+            skipWhitespace();
+            if (position != end) {
+                throw error("Unexpected data after the request");
+            }
+        }
+
+        /**
+         * Reads the next value as the name of a member, straight from the bytes unless it has escapes.
+         */
+        String name() {
+            int start = skipValue();
+            int length = position - start;
+            if (length >= 2 && bytes[start] == '"' && bytes[position - 1] == '"') {
+                boolean escaped = false;
+                for (int i = start + 1; i < position - 1 && !escaped; i++) {
+                    escaped = bytes[i] == '\\';
+                }
+                if (!escaped) {
+                    return new String(bytes, start + 1, length - 2, StandardCharsets.UTF_8);
+                }
+            }
+            return JsonParser.parseReader(readerOf(bytes, start, length)).getAsString();
+        }
+
+        /**
+         * Moves past the next value and returns where it starts.
+         */
+        int skipValue() {
+            skipWhitespace();
+            int start = position;
+            int depth = 0;
+            while (position < end) {
+                byte current = bytes[position];
+                if (current == '"') {
+                    skipString();
+                    if (depth == 0) {
+                        return start;
+                    }
+                    continue;
+                }
+                if (current == '{' || current == '[') {
+                    depth++;
+                } else if (current == '}' || current == ']') {
+                    if (depth == 0) {
+                        break;
+                    }
+                    depth--;
+                    if (depth == 0) {
+                        position++;
+                        return start;
+                    }
+                } else if (depth == 0 && (current == ',' || current == ':' || Character.isWhitespace(current))) {
+                    break;
+                }
+                position++;
+            }
+            if (depth != 0 || position == start) {
+                throw error("Incomplete value");
+            }
+            return start;
+        }
+
+        private void skipString() {
+            position++;
+            while (position < end) {
+                byte current = bytes[position++];
+                if (current == '\\') {
+                    position++;
+                } else if (current == '"') {
+                    return;
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private void skipWhitespace() {
+            while (position < end && Character.isWhitespace(bytes[position])) {
+                position++;
+            }
+        }
+
+        private JsonSyntaxException error(String message) {
+            return new JsonSyntaxException(message + " at byte " + position + " of the request");
+        }
+    }
+}
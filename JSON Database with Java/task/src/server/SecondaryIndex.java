@@ -0,0 +1,81 @@
+package server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An index of the top-level keys by the element found at a path relative to each of them, such as
+ * {@code car.model} for the model of every car stored under a top-level key. It is declared when the
+ * server starts, built from the recovered document and then kept up to date by every change.
+ * <p>
+ * Readers never lock, so the index is allowed to hold more keys than match, never fewer: the keys of
+ * a new element are added before the change is published and the ones of the replaced element are only
+ * removed afterwards. A find therefore checks every key it gets against the document it reads from.
+ */
+class SecondaryIndex {
+
+    private final List<String> path;
+
+    private final ConcurrentMap<String, Set<String>> keysByElement = new ConcurrentHashMap<>();
+
+    SecondaryIndex(List<String> path) {
+        this.path = path;
+    }
+
+    List<String> getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the element at the path of the index inside the value, or null when there is none.
+     * A value that is not decoded stays so.
+     */
+    JsonElement elementOf(JsonValue value) {
+        return value.elementAt(path);
+    }
+
+    void add(String topKey, JsonElement element) {
+        keysByElement.compute(keyOf(element), (ignored, topKeys) -> {
+            Set<String> added = topKeys != null ? topKeys : ConcurrentHashMap.newKeySet();
+            added.add(topKey);
+            return added;
+        });
+    }
+
+    void remove(String topKey, JsonElement element) {
+        keysByElement.computeIfPresent(keyOf(element), (ignored, topKeys) -> {
+            topKeys.remove(topKey);
+            return topKeys.isEmpty() ? null : topKeys;
+        });
+    }
+
+    /**
+     * Returns the top-level keys which may hold the element at the path of the index.
+     */
+    Set<String> candidatesOf(JsonElement element) {
+        Set<String> topKeys = keysByElement.get(keyOf(element));
+        return topKeys != null ? topKeys : Collections.emptySet();
+    }
+
+    /**
+     * Returns the key the element is indexed by, which is the same for numbers
+     * written differently, such as 12.5 and 12.50, as they are equal elements.
+     */
+    private static String keyOf(JsonElement element) {
+        if (element.isJsonPrimitive() && ((JsonPrimitive) element).isNumber()) {
+            try {
+                return new BigDecimal(element.getAsString()).stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+                return element.toString();
+            }
+        }
+        return element.toString();
+    }
+}
@@ -0,0 +1,123 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts the client connections and serves their requests until the server is shut down.
+ */
+interface ServerEngine {
+
+    /**
+     * Serves connections, returning once the engine was stopped and the requests in flight are answered.
+     */
+    void serve() throws IOException;
+
+    /**
+     * Stops accepting connections; called from the thread handling the exit request.
+     */
+    void stop();
+
+    static ServerEngine create(String name) {
+        switch (name) {
+            case Constants.ENGINE_POOL:
+                return new BlockingServer(Executors.newFixedThreadPool(Constants.POOL_SIZE));
+            case Constants.ENGINE_VIRTUAL:
+                return new BlockingServer(newVirtualThreadPerTaskExecutor());
+            case Constants.ENGINE_NIO:
+                return new NioServer();
+            default:
+                throw new IllegalArgumentException("Unknown server engine: " + name);
+        }
+    }
+
+    /**
+     * Looks the virtual thread executor up at runtime, so the server still builds and runs
+     * with the other engines on Java versions without virtual threads.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("The " + Constants.ENGINE_VIRTUAL + " engine needs Java 21 or newer", e);
+        }
+    }
+}
+
+/**
+ * Serves every connection with blocking I/O on a task of its own, running on a fixed pool
+ * of platform threads or on one virtual thread per connection.
+ */
+class BlockingServer implements ServerEngine {
+
+    private final ExecutorService executor;
+
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    private volatile ServerSocket serverSocket;
+
+    BlockingServer(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void serve() throws IOException {
+        try {
+            serverSocket = new ServerSocket(Main.getInputArguments().getPort(), Constants.BACKLOG, InetAddress.getByName(Constants.ADDRESS));
+            System.out.println("Server started!");
+
+            while (!Main.isExiting()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    executor.submit(new handleSocket(socket, connections));
+                } catch (Exception e) {
+                    if (Main.isExiting()) {
+                        break;
+                    } else {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            closeIdleConnections();
+            executor.shutdown();
+            executor.awaitTermination(Constants.SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        }
+    }
+
+    /**
+     * Ends the input of every kept-alive connection, so the ones waiting for their next request
+     * see the end of the stream while a request still being served can send its response.
+     */
+    private void closeIdleConnections() {
+        for (Socket socket : connections) {
+            try {
+                socket.shutdownInput();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error occurred while closing the server socket: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the latest requests that took longer than a threshold from being received to being answered,
+ * each with the time it spent in every stage, its type, its key and the size of its frame, in a ring
+ * of a fixed number of entries. Entries are also appended to a file, if one is given, one line of JSON
+ * at a time, by a thread of their own; entries the thread falls behind on by more than the size of the
+ * ring are left out of the file rather than held in memory or making the requests wait.
+ */
+class SlowLog {
+
+    private final long threshold;
+
+    private final JsonObject[] entries;
+
+    private long added = 0;
+
+    private final Path file;
+
+    private final ThreadPoolExecutor writer;
+
+    private BufferedWriter out;
+
+    /**
+     * Creates a log of the requests taking at least the threshold in microseconds, none when it is
+     * negative, keeping the given number of them in memory and appending them to the file, if not null.
+     */
+    SlowLog(long threshold, int size, String file) {
+        this.threshold = threshold < 0 ? -1 : TimeUnit.MICROSECONDS.toNanos(threshold);
+        this.entries = new JsonObject[Math.max(1, size)];
+        this.file = file != null ? Path.of(file) : null;
+        this.writer = file != null ? new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(entries.length), runnable -> {
+                    Thread thread = new Thread(runnable, "slowlog");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardPolicy()) : null;
+    }
+
+    /**
+     * Logs the request if it took at least the threshold, given the time it took in every stage.
+     */
+    void offer(Request request, long[] stages) {
+        long total = stages[Metrics.Stage.TOTAL.ordinal()];
+        if (threshold < 0 || total < threshold) {
+            return;
+        }
+        JsonObject entry = new JsonObject();
+        entry.addProperty("time", System.currentTimeMillis());
+        entry.addProperty("type", request.getType());
+        JsonElement key = request.get("key");
+        if (key != null) {
+            entry.add("key", key);
+        }
+        entry.addProperty("size", request.getSize());
+        JsonObject timings = new JsonObject();
+        for (Metrics.Stage stage : Metrics.Stage.values()) {
+            if (stages[stage.ordinal()] > 0) {
+                timings.addProperty(stage.getName(), stages[stage.ordinal()] / 1000);
+            }
+        }
+        entry.add("stages", timings);
+        synchronized (this) {
+            entry.addProperty("id", added);
+            entries[(int) (added++ % entries.length)] = entry;
+        }
+        if (writer != null) {
+            writer.execute(() -> write(entry));
+        }
+    }
+
+    /**
+     * Returns at most the given number of the entries kept, the latest first.
+     */
+    synchronized JsonArray latest(int limit) {
+        JsonArray latest = new JsonArray();
+        long kept = Math.min(added, entries.length);
+        for (long i = 1; i <= Math.min(kept, limit); i++) {
+            latest.add(entries[(int) ((added - i) % entries.length)]);
+        }
+        return latest;
+    }
+
+    private void write(JsonObject entry) {
+        try {
+            if (out == null) {
+                out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+            }
+            out.write(entry.toString());
+            out.newLine();
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error occurred while writing the slow log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes out the entries still queued for the file and closes it.
+     */
+    void close() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        writer.shutdown();
+        writer.awaitTermination(Constants.SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error occurred while closing the slow log: " + e.getMessage());
+        }
+    }
+}
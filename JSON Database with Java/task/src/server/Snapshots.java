@@ -0,0 +1,236 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Point-in-time snapshots of the document, each one split into shard files by the hash of the top-level
+ * keys and named after the lsn of the last log record it contains. The shards of a snapshot are written
+ * and loaded in parallel. Every shard is written to a temporary file, forced to disk and only then renamed
+ * into place, and a snapshot only counts once all of its shards are, so the latest complete snapshot on
+ * disk is always used. Shards are saved compressed; the plain ones written before are still loaded.
+ */
+class Snapshots implements StorageEngine {
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private static final String SNAPSHOT_SUFFIX = ".json";
+
+    private static final String SHARD_SEPARATOR = "-of-";
+
+    private final Path directory;
+
+    private final int shardCount;
+
+    private final Executor executor;
+
+    Snapshots(Path directory, int shardCount, Executor executor) {
+        this.directory = directory;
+        this.shardCount = shardCount;
+        this.executor = executor;
+    }
+
+    @Override
+    public long latestLsn() throws IOException {
+        for (Map.Entry<Long, List<Path>> snapshot : listSnapshots().entrySet()) {
+            if (isComplete(snapshot.getValue())) {
+                return snapshot.getKey();
+            }
+        }
+        return NO_CHECKPOINT;
+    }
+
+    /**
+     * Loads the shards of the newest complete snapshot in parallel.
+     */
+    @Override
+    public Snapshot load() throws IOException {
+        long lsn = latestLsn();
+        List<CompletableFuture<JsonObject>> loads = new ArrayList<>();
+        for (Path shard : listSnapshots().get(lsn)) {
+            loads.add(CompletableFuture.supplyAsync(() -> load(shard), executor));
+        }
+        PersistentMap<String, JsonValue> document = PersistentMap.empty();
+        for (CompletableFuture<JsonObject> load : loads) {
+            for (Map.Entry<String, JsonElement> entry : join(load).entrySet()) {
+                document = document.put(entry.getKey(), JsonValue.parsed(entry.getValue()));
+            }
+        }
+        return new Snapshot(lsn, document);
+    }
+
+    /**
+     * Saves the document as the snapshot at the lsn, writing its shards in parallel,
+     * and removes the snapshots before it.
+     */
+    @Override
+    public void write(long lsn, PersistentMap<String, JsonValue> document) throws IOException {
+        Files.createDirectories(directory);
+        List<List<Map.Entry<String, JsonValue>>> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (Map.Entry<String, JsonValue> entry : document) {
+            shards.get(Database.shardOf(entry.getKey(), shardCount)).add(entry);
+        }
+        List<CompletableFuture<Void>> saves = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            Path path = directory.resolve(String.format("%s%020d-%d%s%d%s",
+                    SNAPSHOT_PREFIX, lsn, i, SHARD_SEPARATOR, shardCount, SNAPSHOT_SUFFIX));
+            List<Map.Entry<String, JsonValue>> shard = shards.get(i);
+            saves.add(CompletableFuture.runAsync(() -> save(path, shard), executor));
+        }
+        for (CompletableFuture<Void> save : saves) {
+            join(save);
+        }
+        for (Map.Entry<Long, List<Path>> snapshot : listSnapshots().entrySet()) {
+            if (snapshot.getKey() < lsn) {
+                for (Path shard : snapshot.getValue()) {
+                    Files.deleteIfExists(shard);
+                }
+            }
+        }
+    }
+
+    private static JsonObject load(Path shard) {
+        try {
+            return new DocumentFile(shard).load();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void save(Path shard, List<Map.Entry<String, JsonValue>> entries) {
+        try {
+            new DocumentFile(shard, true).save(entries);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the shard files of every snapshot in the directory, the newest snapshot first.
+     */
+    private Map<Long, List<Path>> listSnapshots() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyMap();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(SNAPSHOT_PREFIX)
+                            && file.getFileName().toString().endsWith(SNAPSHOT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.groupingBy(Snapshots::lsnOf,
+                            () -> new TreeMap<>(Comparator.reverseOrder()), Collectors.toList()));
+        }
+    }
+
+    /**
+     * Tells whether all the shards of a snapshot are on disk. A snapshot written before the
+     * snapshots were sharded is a single file named after its lsn alone.
+     */
+    private static boolean isComplete(List<Path> shards) {
+        String name = nameOf(shards.get(0));
+        int separator = name.indexOf(SHARD_SEPARATOR);
+        if (separator < 0) {
+            return shards.size() == 1;
+        }
+        return shards.size() == Integer.parseInt(name.substring(separator + SHARD_SEPARATOR.length()));
+    }
+
+    private static String nameOf(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length());
+    }
+
+    private static long lsnOf(Path snapshot) {
+        String name = nameOf(snapshot);
+        int separator = name.indexOf('-');
+        return Long.parseLong(separator < 0 ? name : name.substring(0, separator));
+    }
+
+    @Override
+    public void close() {
+    }
+}
+
+/**
+ * A single JSON document on disk. A save goes to a temporary file first which is forced to disk
+ * and then replaces the old one, so a crash in the middle of a save never leaves an empty database.
+ * The document is saved as plain JSON or in {@link CompressedBlocks}, and loaded either way.
+ */
+class DocumentFile {
+
+    private final Path path;
+
+    private final Path tempPath;
+
+    private final boolean compressed;
+
+    DocumentFile(Path path) {
+        this(path, false);
+    }
+
+    DocumentFile(Path path, boolean compressed) {
+        this.path = path;
+        this.tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        this.compressed = compressed;
+    }
+
+    JsonObject load() throws IOException {
+        if (!Files.exists(path)) {
+            return new JsonObject();
+        }
+        InputStream inputStream = new BufferedInputStream(Files.newInputStream(path));
+        if (CompressedBlocks.isCompressed(inputStream)) {
+            inputStream = new BlockInputStream(inputStream);
+        }
+        try (Reader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            JsonObject map = new Gson().fromJson(reader, JsonObject.class);
+            return Objects.equals(map, null) ? new JsonObject() : map;
+        }
+    }
+
+    /**
+     * Saves the values as the members of one object, writing values still held as received bytes as they are.
+     */
+    void save(Iterable<Map.Entry<String, JsonValue>> document) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(tempPath.toFile());
+             Writer writer = new BufferedWriter(new OutputStreamWriter(
+                     compressed ? new BlockOutputStream(outputStream) : outputStream, StandardCharsets.UTF_8))) {
+            JsonWriter jsonWriter = new JsonWriter(writer);
+            jsonWriter.beginObject();
+            for (Map.Entry<String, JsonValue> entry : document) {
+                entry.getValue().writeTo(jsonWriter.name(entry.getKey()));
+            }
+            jsonWriter.endObject();
+            jsonWriter.flush();
+            outputStream.getFD().sync();
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,77 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the checkpoints of the document the write-ahead log is replayed on top of. A checkpoint is
+ * exact at the lsn of the last log record it contains, so the log up to it may be dropped once written.
+ */
+interface StorageEngine extends Closeable {
+
+    long NO_CHECKPOINT = -1;
+
+    /**
+     * Returns the lsn of the latest complete checkpoint, or {@link #NO_CHECKPOINT} when there is none yet.
+     */
+    long latestLsn() throws IOException;
+
+    /**
+     * Loads the latest complete checkpoint, which must exist.
+     */
+    Snapshot load() throws IOException;
+
+    /**
+     * Saves the document as the checkpoint at the lsn.
+     */
+    void write(long lsn, PersistentMap<String, JsonValue> document) throws IOException;
+
+    static StorageEngine create(String name, Path directory, int shards, Executor executor) {
+        switch (name) {
+            case Constants.STORAGE_SNAPSHOT:
+                return new Snapshots(directory, shards, executor);
+            case Constants.STORAGE_MMAP:
+                return new PageStore(directory);
+            case Constants.STORAGE_LSM:
+                return new LsmStore(directory, executor);
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + name);
+        }
+    }
+
+    /**
+     * Creates every engine over the directory, so the newest checkpoint can be found
+     * whichever engine wrote it, even if the server ran with another engine before.
+     */
+    static Map<String, StorageEngine> createAll(Path directory, int shards, Executor executor) {
+        Map<String, StorageEngine> engines = new LinkedHashMap<>();
+        for (String name : new String[]{Constants.STORAGE_SNAPSHOT, Constants.STORAGE_MMAP, Constants.STORAGE_LSM}) {
+            engines.put(name, create(name, directory, shards, executor));
+        }
+        return engines;
+    }
+
+    class Snapshot {
+
+        private final long lsn;
+
+        private final PersistentMap<String, JsonValue> document;
+
+        Snapshot(long lsn, PersistentMap<String, JsonValue> document) {
+            this.lsn = lsn;
+            this.document = document;
+        }
+
+        long getLsn() {
+            return lsn;
+        }
+
+        PersistentMap<String, JsonValue> getDocument() {
+            return document;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the memory taken by decoded values. Every value is kept as the bytes it is stored as, which a
+ * {@link JsonValue} parses into elements and indexes the first time they are needed; this cache keeps
+ * the decoded form of the values read most, up to a budget of their stored bytes, and has the others
+ * drop it again. A value decoded again afterwards counts as a miss, one found decoded as a hit.
+ * <p>
+ * Eviction follows W-TinyLFU. A value decoded anew enters a small window ordered by recency; the one
+ * leaving the window is only admitted to the main space if it was used more often than the value it
+ * would evict there, as estimated by a {@link FrequencySketch}. The main space is a segmented LRU, whose
+ * protected segment holds the values used again since their admission. A budget of zero keeps every
+ * value decoded and only counts hits and misses.
+ * <p>
+ * Values never change, so a write never makes a cached value stale; the value it replaces is just
+ * dropped from the cache and the new one is admitted. Hits are recorded without waiting for the lock,
+ * and are simply not recorded while it is busy.
+ */
+class ValueCache {
+
+    private static final int WINDOW_PERCENT = 1;
+
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final long capacity;
+
+    private final long windowCapacity;
+
+    private final long protectedCapacity;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    private final Map<JsonValue, Integer> window = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<JsonValue, Integer> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<JsonValue, Integer> protectedValues = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long windowWeight = 0;
+
+    private long probationWeight = 0;
+
+    private long protectedWeight = 0;
+
+    ValueCache(long capacity) {
+        this.capacity = capacity;
+        this.windowCapacity = capacity * WINDOW_PERCENT / 100;
+        this.protectedCapacity = (capacity - windowCapacity) * PROTECTED_PERCENT / 100;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getWeight() {
+        lock.lock();
+        try {
+            return windowWeight + probationWeight + protectedWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void recordHit(JsonValue value) {
+        hits.increment();
+        if (capacity > 0 && lock.tryLock()) {
+            try {
+                access(value);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    void recordMiss(JsonValue value) {
+        misses.increment();
+        admit(value);
+    }
+
+    /**
+     * Takes a value decoded some other way than by a read, such as a value changed by a write, into account.
+     */
+    void admit(JsonValue value) {
+        if (capacity > 0) {
+            lock.lock();
+            try {
+                access(value);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Drops a value replaced by a write, which keeps its decoded form for the readers still holding it.
+     */
+    void invalidate(JsonValue value) {
+        if (capacity > 0) {
+            lock.lock();
+            try {
+                Integer weight;
+                if ((weight = window.remove(value)) != null) {
+                    windowWeight -= weight;
+                } else if ((weight = probation.remove(value)) != null) {
+                    probationWeight -= weight;
+                } else if ((weight = protectedValues.remove(value)) != null) {
+                    protectedWeight -= weight;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void access(JsonValue value) {
+        sketch.increment(value);
+        if (window.get(value) != null || protectedValues.get(value) != null) {
+            return;
+        }
+        Integer weight = probation.remove(value);
+        if (weight != null) {
+            probationWeight -= weight;
+            protectedValues.put(value, weight);
+            protectedWeight += weight;
+            while (protectedWeight > protectedCapacity) {
+                JsonValue demoted = eldestOf(protectedValues);
+                int demotedWeight = protectedValues.remove(demoted);
+                protectedWeight -= demotedWeight;
+                probation.put(demoted, demotedWeight);
+                probationWeight += demotedWeight;
+            }
+        } else if (value.isDecoded()) {
+            weight = value.weight();
+            window.put(value, weight);
+            windowWeight += weight;
+            while (windowWeight > windowCapacity) {
+                JsonValue candidate = eldestOf(window);
+                int candidateWeight = window.remove(candidate);
+                windowWeight -= candidateWeight;
+                admitToMain(candidate, candidateWeight);
+            }
+        }
+    }
+
+    /**
+     * Moves the value leaving the window to the main space if it was used more often than every value
+     * it evicts there to make room, or evicts the value itself.
+     */
+    private void admitToMain(JsonValue candidate, int weight) {
+        long mainCapacity = capacity - windowCapacity;
+        if (weight > mainCapacity) {
+            candidate.evict();
+            return;
+        }
+        while (probationWeight + protectedWeight + weight > mainCapacity) {
+            boolean fromProbation = !probation.isEmpty();
+            Map<JsonValue, Integer> segment = fromProbation ? probation : protectedValues;
+            JsonValue victim = eldestOf(segment);
+            if (sketch.frequencyOf(candidate) <= sketch.frequencyOf(victim)) {
+                candidate.evict();
+                return;
+            }
+            int victimWeight = segment.remove(victim);
+            if (fromProbation) {
+                probationWeight -= victimWeight;
+            } else {
+                protectedWeight -= victimWeight;
+            }
+            victim.evict();
+        }
+        probation.put(candidate, weight);
+        probationWeight += weight;
+    }
+
+    private static JsonValue eldestOf(Map<JsonValue, Integer> segment) {
+        return segment.keySet().iterator().next();
+    }
+}
+
+/**
+ * A count-min sketch estimating how often each value was used lately, with four counters per value
+ * saturating at 15. All counters are halved once the sketch has counted ten uses per counter of a row,
+ * so the estimates follow the values used recently rather than the ones used most since the start.
+ */
+class FrequencySketch {
+
+    private static final int WIDTH = 1 << 16;
+
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final byte[][] counters = new byte[DEPTH][WIDTH];
+
+    private int additions = 0;
+
+    void increment(Object value) {
+        int hash = System.identityHashCode(value);
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int slot = slotOf(hash, i);
+            if (counters[i][slot] < MAX_COUNT) {
+                counters[i][slot]++;
+                added = true;
+            }
+        }
+        if (added && ++additions == WIDTH * 10) {
+            reset();
+        }
+    }
+
+    int frequencyOf(Object value) {
+        int hash = System.identityHashCode(value);
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, counters[i][slotOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    private static int slotOf(int hash, int row) {
+        int mixed = (hash ^ SEEDS[row]) * 0x9E3779B1;
+        return (mixed ^ (mixed >>> 16)) & (WIDTH - 1);
+    }
+}
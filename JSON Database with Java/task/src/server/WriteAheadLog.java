@@ -0,0 +1,539 @@
+package server;
+
+import com.google.gson.JsonObject;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the write requests applied to the database. Every record is framed as
+ * its length, a CRC32, its log sequence number (lsn) and the compact JSON of the request.
+ * <p>
+ * The log is split into shards by the hash of the top-level key a record changes, each with its own
+ * segment files and its own writer thread, so records of different shards are written and forced to disk
+ * in parallel. Within a shard appends are only queued; the writer thread drains everything queued since
+ * its last round, writes it with one call and forces it to disk once, completing the whole group together.
+ * <p>
+ * The lsns are handed out across all shards, in the order the changes were applied in. A record only
+ * counts as durable once every record before it is, whatever shard it went to, so the state recovered
+ * after a crash is always the one of some point in that order: replaying stops at the first lsn missing
+ * from every shard, as a crash may have left a later record of a faster shard on disk.
+ * <p>
+ * For the same reason a record that failed to be written leaves a hole no later record can be recovered
+ * past. The records after it fail with it, and so does every record appended from then on, until a
+ * checkpoint covering the failed record is taken and the log is truncated up to it.
+ * <p>
+ * The segment files of a shard are named after the shard and the lsn of their first record. A snapshot
+ * rolls every shard over to a new segment, so once it is on disk the older segments can simply be deleted.
+ */
+class WriteAheadLog implements Closeable {
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final String SEGMENT_PREFIX = "wal-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+
+    private final Shard[] shards;
+
+    private final Object monitor = new Object();
+
+    private long nextLsn;
+
+    /**
+     * The lsn up to which every record is durable.
+     */
+    private long durableLsn;
+
+    /**
+     * The lsns of the records written after a record still being written, which are not durable yet.
+     */
+    private final NavigableSet<Long> writtenLsns = new TreeSet<>();
+
+    private final NavigableMap<Long, CompletableFuture<Void>> waiting = new TreeMap<>();
+
+    private long failedLsn;
+
+    private IOException failure;
+
+    private boolean closed = false;
+
+    private WriteAheadLog(Path directory, int shardCount, long nextLsn) throws IOException {
+        this.directory = directory;
+        this.nextLsn = nextLsn;
+        this.durableLsn = nextLsn - 1;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, openSegment(i, nextLsn));
+        }
+    }
+
+    /**
+     * Reads the segments of all shards in parallel on the executor and hands every intact record newer
+     * than {@code fromLsn} to the consumer in lsn order, up to the first lsn missing from every shard.
+     * Torn records left at the end of a segment by a crash are cut off. Every shard gets a fresh segment
+     * for new records, whose lsns follow the last one found on disk, replayed or not.
+     */
+    static WriteAheadLog open(Path directory, long fromLsn, int shardCount, Executor executor,
+                              RecordConsumer replay) throws IOException {
+        Files.createDirectories(directory);
+        Map<Integer, List<Path>> segmentsByShard = listSegments(directory);
+        List<CompletableFuture<List<Record>>> reads = new ArrayList<>();
+        for (List<Path> segments : segmentsByShard.values()) {
+            reads.add(CompletableFuture.supplyAsync(() -> readShard(segments), executor));
+        }
+        List<Record> records = new ArrayList<>();
+        long lastLsn = fromLsn;
+        for (CompletableFuture<List<Record>> read : reads) {
+            for (Record record : join(read)) {
+                lastLsn = Math.max(lastLsn, record.lsn);
+                if (record.lsn > fromLsn) {
+                    records.add(record);
+                }
+            }
+        }
+        records.sort(Comparator.comparingLong(record -> record.lsn));
+        long expectedLsn = fromLsn + 1;
+        for (Record record : records) {
+            if (record.lsn != expectedLsn) {
+                break;
+            }
+            replay.accept(record.lsn, record.payload);
+            expectedLsn++;
+        }
+        int shards = segmentsByShard.isEmpty() ? shardCount : Math.max(shardCount, Collections.max(segmentsByShard.keySet()) + 1);
+        WriteAheadLog log = new WriteAheadLog(directory, shards, lastLsn + 1);
+        for (Shard shard : log.shards) {
+            shard.writerThread.start();
+        }
+        return log;
+    }
+
+    private static List<Record> readShard(List<Path> segments) {
+        List<Record> records = new ArrayList<>();
+        try {
+            for (Path segment : segments) {
+                readSegment(segment, records);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return records;
+    }
+
+    private static void readSegment(Path segment, List<Record> records) throws IOException {
+        try (FileChannel segmentChannel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(segmentChannel)));
+            long position = 0;
+            long size = segmentChannel.size();
+            CRC32 crc = new CRC32();
+            while (size - position >= HEADER_SIZE) {
+                int length = input.readInt();
+                int checksum = input.readInt();
+                long lsn = input.readLong();
+                if (length < 0 || length > size - position - HEADER_SIZE) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                if (checksum(crc, lsn, payload) != checksum) {
+                    break;
+                }
+                records.add(new Record(lsn, payload));
+                position += HEADER_SIZE + length;
+            }
+            if (position < size) {
+                segmentChannel.truncate(position);
+                segmentChannel.force(true);
+            }
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the segments of every shard found in the directory, ordered by the lsn of their first record.
+     * Segments named after their lsn alone, as written before the log was sharded, belong to the first shard.
+     */
+    private static Map<Integer, List<Path>> listSegments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                            && file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted(Comparator.comparingLong(WriteAheadLog::firstLsnOf))
+                    .collect(Collectors.groupingBy(WriteAheadLog::shardOf, TreeMap::new, Collectors.toList()));
+        }
+    }
+
+    private static String nameOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+    }
+
+    private static int shardOf(Path segment) {
+        String name = nameOf(segment);
+        int separator = name.indexOf('-');
+        return separator < 0 ? 0 : Integer.parseInt(name.substring(0, separator));
+    }
+
+    private static long firstLsnOf(Path segment) {
+        String name = nameOf(segment);
+        return Long.parseLong(name.substring(name.indexOf('-') + 1));
+    }
+
+    private FileChannel openSegment(int shard, long firstLsn) throws IOException {
+        Path segment = directory.resolve(String.format("%s%d-%020d%s", SEGMENT_PREFIX, shard, firstLsn, SEGMENT_SUFFIX));
+        return FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static int checksum(CRC32 crc, long lsn, byte[] payload) {
+        crc.reset();
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, lsn));
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Assigns the record the next lsn and queues it on the shard, returning a future completed once it
+     * and every record before it are durable, or failed once one of them failed. The record is serialized
+     * right away, so the caller may keep changing the elements it holds. Callers append under the stripe
+     * lock of the key they change, so the lsn order of the records of a key is the order its changes were
+     * applied in.
+     */
+    CompletableFuture<Void> append(int shard, JsonObject record) {
+        return append(shard, record.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends a record already serialized to the UTF-8 bytes of its JSON.
+     */
+    CompletableFuture<Void> append(int shard, byte[] payload) {
+        synchronized (monitor) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("The log in " + directory + " is closed"));
+            }
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failedBefore(failedLsn));
+            }
+            long lsn = nextLsn++;
+            CompletableFuture<Void> durable = new CompletableFuture<>();
+            waiting.put(lsn, durable);
+            shards[shard % shards.length].append(lsn, payload).whenComplete((ignored, e) -> written(lsn, e));
+            return durable;
+        }
+    }
+
+    /**
+     * Returns whether a record failed and the log takes no records until a checkpoint covers it.
+     */
+    boolean isFailed() {
+        synchronized (monitor) {
+            return failure != null;
+        }
+    }
+
+    /**
+     * Moves the durable lsn on once the record is written, or fails it and every record after it.
+     * The futures are completed outside of the monitor, which appenders need.
+     */
+    private void written(long lsn, Throwable error) {
+        Map<Long, CompletableFuture<Void>> done;
+        synchronized (monitor) {
+            if (error != null) {
+                if (failure == null || lsn < failedLsn) {
+                    failure = failure(error);
+                    failedLsn = lsn;
+                }
+                done = new TreeMap<>(waiting.tailMap(lsn, true));
+                waiting.tailMap(lsn, true).clear();
+            } else if (failure == null || lsn < failedLsn) {
+                writtenLsns.add(lsn);
+                done = advanceDurableLsn();
+            } else {
+                // failed already with the record before it that failed
+                return;
+            }
+        }
+        for (Map.Entry<Long, CompletableFuture<Void>> entry : done.entrySet()) {
+            if (error == null) {
+                entry.getValue().complete(null);
+            } else {
+                entry.getValue().completeExceptionally(entry.getKey() == lsn ? failure(error) : failedBefore(lsn));
+            }
+        }
+    }
+
+    private Map<Long, CompletableFuture<Void>> advanceDurableLsn() {
+        while (!writtenLsns.isEmpty() && writtenLsns.first() <= durableLsn + 1) {
+            durableLsn = Math.max(durableLsn, writtenLsns.pollFirst());
+        }
+        Map<Long, CompletableFuture<Void>> durable = new TreeMap<>(waiting.headMap(durableLsn, true));
+        waiting.headMap(durableLsn, true).clear();
+        return durable;
+    }
+
+    private static IOException failure(Throwable error) {
+        return error instanceof IOException ? (IOException) error : new IOException(error);
+    }
+
+    private IOException failedBefore(long lsn) {
+        return new IOException("Record " + lsn + " of the log in " + directory + " failed and no checkpoint covers it yet", failure);
+    }
+
+    long getLastLsn() {
+        synchronized (monitor) {
+            return nextLsn - 1;
+        }
+    }
+
+    /**
+     * Makes every record appended from now on go to new segments and returns the lsn
+     * of the last record appended before it. Nothing may be appended meanwhile.
+     */
+    long rollOver() {
+        synchronized (monitor) {
+            for (Shard shard : shards) {
+                shard.rollOver(nextLsn);
+            }
+            return nextLsn - 1;
+        }
+    }
+
+    /**
+     * Deletes the segments holding only records up to the lsn, which a snapshot already covers.
+     * Every record up to it counts as durable from now on, so a failed one it covers is forgotten.
+     */
+    void truncate(long upToLsn) throws IOException {
+        Map<Long, CompletableFuture<Void>> durable;
+        synchronized (monitor) {
+            if (failure != null && failedLsn <= upToLsn) {
+                failure = null;
+            }
+            durableLsn = Math.max(durableLsn, upToLsn);
+            durable = advanceDurableLsn();
+        }
+        for (CompletableFuture<Void> future : durable.values()) {
+            future.complete(null);
+        }
+        for (List<Path> segments : listSegments(directory).values()) {
+            for (int i = 0; i < segments.size() - 1; i++) {
+                if (firstLsnOf(segments.get(i + 1)) <= upToLsn + 1) {
+                    Files.deleteIfExists(segments.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets the writer threads flush whatever is still queued, then closes the files.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (monitor) {
+            closed = true;
+        }
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    interface RecordConsumer {
+
+        void accept(long lsn, byte[] payload);
+    }
+
+    private static class Record {
+
+        private final long lsn;
+
+        private final byte[] payload;
+
+        Record(long lsn, byte[] payload) {
+            this.lsn = lsn;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * The segments of one shard of the log, written by a thread of its own.
+     */
+    private class Shard {
+
+        private final int index;
+
+        private final Thread writerThread;
+
+        private final Object shardMonitor = new Object();
+
+        private FileChannel channel;
+
+        private long nextSegmentLsn = -1;
+
+        private List<PendingRecord> pending = new ArrayList<>();
+
+        private boolean closed = false;
+
+        Shard(int index, FileChannel channel) {
+            this.index = index;
+            this.channel = channel;
+            this.writerThread = new Thread(this::runWriter, "wal-writer-" + index);
+            this.writerThread.setDaemon(true);
+        }
+
+        CompletableFuture<Void> append(long lsn, byte[] payload) {
+            PendingRecord pendingRecord = new PendingRecord(lsn, payload, checksum(new CRC32(), lsn, payload));
+            synchronized (shardMonitor) {
+                pending.add(pendingRecord);
+                shardMonitor.notify();
+            }
+            return pendingRecord.future;
+        }
+
+        void rollOver(long firstLsn) {
+            synchronized (shardMonitor) {
+                pending.add(PendingRecord.rollOver(firstLsn));
+                shardMonitor.notify();
+            }
+        }
+
+        private void runWriter() {
+            while (true) {
+                List<PendingRecord> group;
+                synchronized (shardMonitor) {
+                    while (pending.isEmpty() && !closed) {
+                        try {
+                            shardMonitor.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    group = pending;
+                    pending = new ArrayList<>();
+                }
+                int from = 0;
+                for (int i = 0; i < group.size(); i++) {
+                    if (group.get(i).payload == null) {
+                        writeGroup(group.subList(from, i));
+                        nextSegmentLsn = group.get(i).lsn;
+                        try {
+                            switchSegment();
+                        } catch (IOException e) {
+                            // retried before the next group, which fails with it if the segment still cannot be opened
+                        }
+                        from = i + 1;
+                    }
+                }
+                writeGroup(group.subList(from, group.size()));
+            }
+        }
+
+        private void writeGroup(List<PendingRecord> group) {
+            if (group.isEmpty()) {
+                return;
+            }
+            int size = 0;
+            for (PendingRecord record : group) {
+                size += HEADER_SIZE + record.payload.length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            for (PendingRecord record : group) {
+                buffer.putInt(record.payload.length).putInt(record.checksum).putLong(record.lsn).put(record.payload);
+            }
+            buffer.flip();
+            try {
+                switchSegment();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                for (PendingRecord record : group) {
+                    record.future.complete(null);
+                }
+            } catch (IOException e) {
+                for (PendingRecord record : group) {
+                    record.future.completeExceptionally(e);
+                }
+            }
+        }
+
+        /**
+         * Moves on to the segment the last roll-over asked for, if not done yet. Until it can be opened
+         * the switch stays pending, so the records meant for it fail instead of going to the old segment,
+         * which the snapshot that rolled the log over may delete.
+         */
+        private void switchSegment() throws IOException {
+            if (nextSegmentLsn < 0) {
+                return;
+            }
+            FileChannel next = openSegment(index, nextSegmentLsn);
+            FileChannel previous = channel;
+            channel = next;
+            nextSegmentLsn = -1;
+            previous.close();
+        }
+
+        void close() throws IOException {
+            synchronized (shardMonitor) {
+                closed = true;
+                shardMonitor.notify();
+            }
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    private static class PendingRecord {
+
+        private final long lsn;
+
+        private final byte[] payload;
+
+        private final int checksum;
+
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingRecord(long lsn, byte[] payload, int checksum) {
+            this.lsn = lsn;
+            this.payload = payload;
+            this.checksum = checksum;
+        }
+
+        /**
+         * A marker without payload telling the writer thread to start a new segment at the lsn.
+         */
+        static PendingRecord rollOver(long firstLsn) {
+            return new PendingRecord(firstLsn, null, 0);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package client;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.junit.Test;
+import server.TestServer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DatabaseClientTest {
+
+    @Test
+    public void getsSetsAndDeletesKeysAndPaths() throws Exception {
+        try (TestServer server = TestServer.start("-engine", "nio");
+             DatabaseClient client = DatabaseClient.connect("127.0.0.1", server.getPort(), 2)) {
+            client.set("person", JsonParser.parseString("{\"name\":\"Ann\",\"car\":{\"model\":\"Tesla\"}}"))
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals(new JsonPrimitive("Tesla"), await(client.get(Arrays.asList("person", "car", "model"))));
+            client.set(Arrays.asList("person", "car", "year"), new JsonPrimitive(2018)).get(10, TimeUnit.SECONDS);
+            assertEquals(JsonParser.parseString("{\"model\":\"Tesla\",\"year\":2018}"),
+                    await(client.get(Arrays.asList("person", "car"))));
+            assertTrue(await(client.delete(Arrays.asList("person", "car", "year"))));
+            assertFalse(await(client.delete(Arrays.asList("person", "car", "year"))));
+            assertTrue(await(client.delete("person")));
+            assertNull(await(client.get("person")));
+            assertFalse(await(client.delete("person")));
+        }
+    }
+
+    @Test
+    public void runsBatchesInOrder() throws Exception {
+        try (TestServer server = TestServer.start("-engine", "nio");
+             DatabaseClient client = DatabaseClient.connect("127.0.0.1", server.getPort(), 2)) {
+            List<JsonObject> responses = await(client.batch(new DatabaseClient.Batch()
+                    .set("a", new JsonPrimitive(1))
+                    .get("a")
+                    .delete("a")
+                    .get("a")));
+            assertEquals(4, responses.size());
+            assertEquals("OK", responses.get(0).get("response").getAsString());
+            assertEquals(new JsonPrimitive(1), responses.get(1).get("value"));
+            assertEquals("OK", responses.get(2).get("response").getAsString());
+            assertEquals("ERROR", responses.get(3).get("response").getAsString());
+        }
+    }
+
+    /**
+     * Sends every set and the get after it without waiting over a pool of several connections: the get
+     * goes over the connection of its key, after the set, so it reads the set.
+     */
+    @Test
+    public void readsItsOwnWritesOnTheSameKeyWithoutWaiting() throws Exception {
+        try (TestServer server = TestServer.start("-engine", "nio");
+             DatabaseClient client = DatabaseClient.connect("127.0.0.1", server.getPort(), 4)) {
+            List<CompletableFuture<JsonElement>> reads = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                String key = "key" + i % 10;
+                client.set(key, new JsonPrimitive(i));
+                reads.add(client.get(key));
+            }
+            for (int i = 0; i < reads.size(); i++) {
+                assertEquals(new JsonPrimitive(i), await(reads.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void failsWithTheReasonOfAnError() throws Exception {
+        try (TestServer server = TestServer.start("-engine", "nio");
+             DatabaseClient client = DatabaseClient.connect("127.0.0.1", server.getPort(), 1)) {
+            JsonObject request = JsonParser.parseString(
+                    "{\"type\":\"find\",\"key\":[\"car\",\"model\"],\"value\":\"Tesla\"}").getAsJsonObject();
+            try {
+                await(client.send(request));
+                fail("Expected the find to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DatabaseException);
+                assertEquals("No such index", e.getCause().getMessage());
+            }
+        }
+    }
+
+    /**
+     * Chains more requests than may be in flight from the callbacks of others, which run on the reader
+     * thread of the only connection: none of them may wait for a response that thread would have to read.
+     */
+    @Test
+    public void sendsFromCallbacksWithoutDeadlock() throws Exception {
+        try (TestServer server = TestServer.start("-engine", "nio");
+             DatabaseClient client = DatabaseClient.connect("127.0.0.1", server.getPort(), 1)) {
+            int count = Constants.MAX_IN_FLIGHT * 2;
+            CompletableFuture<Void> chain = client.set("start", new JsonPrimitive(0)).thenCompose(ignored -> {
+                List<CompletableFuture<Void>> sets = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    sets.add(client.set("key" + i, new JsonPrimitive(i)));
+                }
+                return CompletableFuture.allOf(sets.toArray(new CompletableFuture<?>[0]));
+            });
+            chain.get(30, TimeUnit.SECONDS);
+            assertEquals(new JsonPrimitive(count - 1), await(client.get("key" + (count - 1))));
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        return future.get(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,45 @@
+package client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void keepsSmallLatenciesExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int nanos = 1; nanos <= 50; nanos++) {
+            histogram.record(nanos);
+        }
+        assertEquals(50, histogram.getCount());
+        assertEquals(25, histogram.percentile(50));
+        assertEquals(50, histogram.percentile(99));
+    }
+
+    /**
+     * Records the same latencies as the test of the server's histogram, split between two histograms
+     * merged afterwards, and expects the same percentiles.
+     */
+    @Test
+    public void mergesToTheSamePercentilesAsTheServer() {
+        LatencyHistogram odd = new LatencyHistogram();
+        LatencyHistogram even = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 100_000; nanos++) {
+            (nanos % 2 == 0 ? even : odd).record(nanos * 1000);
+        }
+        odd.add(even);
+        assertEquals(100_000, odd.getCount());
+        assertEquals(50_000_500, odd.getMean());
+        assertNear(50_000_000, odd.percentile(50));
+        assertNear(99_000_000, odd.percentile(99));
+        assertNear(99_900_000, odd.percentile(99.9));
+        assertEquals(100_000_000, odd.percentile(100));
+        assertEquals(100_000_000, odd.getMax());
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(expected + " but was " + actual, actual >= expected && actual <= expected * 1.032);
+    }
+}
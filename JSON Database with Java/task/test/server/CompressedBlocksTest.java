@@ -0,0 +1,122 @@
+package server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressedBlocksTest {
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        byte[] data = sample(3 * Constants.COMPRESSED_BLOCK_SIZE + 123);
+        byte[] compressed = compress(data);
+        assertTrue(compressed.length < data.length);
+        assertTrue(CompressedBlocks.isCompressed(new ByteArrayInputStream(compressed)));
+        assertFalse(CompressedBlocks.isCompressed(new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8))));
+        assertArrayEquals(data, new BlockInputStream(new ByteArrayInputStream(compressed)).readAllBytes());
+    }
+
+    @Test
+    public void keepsIncompressibleBlocksWithinBound() {
+        byte[] random = new byte[Constants.COMPRESSED_BLOCK_SIZE];
+        new Random(1).nextBytes(random);
+        assertTrue(CompressedBlocks.deflate(random, 0, random.length).length
+                <= CompressedBlocks.maxDeflatedLength(random.length));
+    }
+
+    @Test
+    public void rejectsCorruptBlockLengths() {
+        byte[] compressed = compress(sample(1000));
+        int header = CompressedBlocks.MAGIC.length;
+        int[][] lengths = {{-1, 10}, {Integer.MAX_VALUE, 10}, {Constants.COMPRESSED_BLOCK_SIZE + 1, 10},
+                {0, 10}, {1000, -5}, {1000, Integer.MAX_VALUE}};
+        for (int[] length : lengths) {
+            byte[] corrupt = compressed.clone();
+            ByteBuffer.wrap(corrupt, header, 8).putInt(length[0]).putInt(length[1]);
+            assertCorrupt(corrupt);
+        }
+    }
+
+    /**
+     * The writer never writes an empty block, so one can only come from corruption, even when it
+     * inflates without error.
+     */
+    @Test
+    public void rejectsEmptyBlocks() {
+        byte[] empty = CompressedBlocks.deflate(new byte[0], 0, 0);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compressed.writeBytes(CompressedBlocks.MAGIC);
+        compressed.writeBytes(ByteBuffer.allocate(8).putInt(0).putInt(empty.length).array());
+        compressed.writeBytes(empty);
+        assertCorrupt(compressed.toByteArray());
+        try (InputStream inputStream = new BlockInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            inputStream.read();
+            fail("Read an empty block");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsCorruptOrTruncatedBlocks() {
+        byte[] compressed = compress(sample(1000));
+        byte[] corrupt = compressed.clone();
+        for (int i = CompressedBlocks.MAGIC.length + 8; i < corrupt.length; i++) {
+            corrupt[i] ^= 0x5A;
+        }
+        assertCorrupt(corrupt);
+        byte[] truncated = new byte[compressed.length - 3];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        assertCorrupt(truncated);
+    }
+
+    @Test
+    public void rejectsInflatedLengthsBeyondDeflateRatio() throws IOException {
+        byte[] deflated = CompressedBlocks.deflate(new byte[10], 0, 10);
+        assertEquals(10, CompressedBlocks.inflate(deflated, 0, deflated.length, 10).length);
+        for (int inflatedLength : new int[]{-1, Integer.MAX_VALUE, 11, 9}) {
+            try {
+                CompressedBlocks.inflate(deflated, 0, deflated.length, inflatedLength);
+                fail("Inflated to " + inflatedLength + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    private static void assertCorrupt(byte[] compressed) {
+        try (InputStream inputStream = new BlockInputStream(new ByteArrayInputStream(compressed))) {
+            inputStream.readAllBytes();
+            fail("Read a corrupt block");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte[] compress(byte[] data) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (BlockOutputStream outputStream = new BlockOutputStream(compressed)) {
+            outputStream.write(data);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] sample(int length) {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; json.length() < length; i++) {
+            json.append("{\"name\":\"user").append(i).append("\",\"age\":").append(i % 90).append("},");
+        }
+        return json.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+}
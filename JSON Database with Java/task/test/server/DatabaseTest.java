@@ -0,0 +1,275 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DatabaseTest {
+
+    private static final String[] STORAGES = {Constants.STORAGE_SNAPSHOT, Constants.STORAGE_MMAP, Constants.STORAGE_LSM};
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("database");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void recoversCheckpointAndLogSuffix() throws IOException {
+        for (String storage : STORAGES) {
+            Path storageDirectory = Files.createDirectory(directory.resolve(storage));
+            Database database = open(storageDirectory, storage);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(Constants.POSITIVE, database.set(key("key" + i), value("{\"n\":" + i + "}")));
+            }
+            database.snapshot();
+            assertEquals(Constants.POSITIVE, database.set(path("key1", "n"), value("101")));
+            assertEquals(Constants.POSITIVE, database.delete(key("key2")));
+            assertEquals(Constants.POSITIVE, database.set(key("new"), value("\"after the checkpoint\"")));
+            // abandoned without closing, as after a crash
+
+            Database recovered = open(storageDirectory, storage);
+            assertEquals(storage, JsonParser.parseString("{\"n\":0}"), recovered.get(key("key0")));
+            assertEquals(storage, new JsonPrimitive(101), recovered.get(path("key1", "n")));
+            assertNull(storage, recovered.get(key("key2")));
+            assertEquals(storage, new JsonPrimitive(99), recovered.get(path("key99", "n")));
+            assertEquals(storage, new JsonPrimitive("after the checkpoint"), recovered.get(key("new")));
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void recoversAfterSeveralCheckpoints() throws IOException {
+        for (String storage : STORAGES) {
+            Path storageDirectory = Files.createDirectory(directory.resolve(storage));
+            Database database = open(storageDirectory, storage);
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 20; i++) {
+                    database.set(key("key" + i), value(String.valueOf(round * 100 + i)));
+                }
+                database.delete(key("key" + round));
+                database.snapshot();
+            }
+            database.set(key("key0"), value("\"last\""));
+
+            Database recovered = open(storageDirectory, storage);
+            assertEquals(storage, new JsonPrimitive("last"), recovered.get(key("key0")));
+            for (int i = 1; i < 20; i++) {
+                assertEquals(storage, i == 4 ? null : new JsonPrimitive(400 + i),
+                        recovered.get(key("key" + i)));
+            }
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void recoversCheckpointOfAnotherStorage() throws IOException {
+        Database database = open(directory, Constants.STORAGE_SNAPSHOT);
+        database.set(key("written"), value("\"by snapshots\""));
+        database.close();
+
+        Database recovered = open(directory, Constants.STORAGE_LSM);
+        assertEquals(new JsonPrimitive("by snapshots"), recovered.get(key("written")));
+        recovered.set(key("written"), value("\"by lsm\""));
+        recovered.close();
+
+        assertEquals(new JsonPrimitive("by lsm"), open(directory, Constants.STORAGE_MMAP).get(key("written")));
+    }
+
+    @Test
+    public void findsThroughIndexAcrossChanges() throws IOException {
+        Database database = open(directory, Constants.STORAGE_SNAPSHOT, Collections.singletonList("car.model"));
+        database.set(key("ann"), value("{\"car\":{\"model\":\"Mini\"}}"));
+        database.set(key("bob"), value("{\"car\":{\"model\":\"Golf\"}}"));
+        database.set(key("eve"), value("{\"car\":{\"model\":\"Mini\"}}"));
+        database.set(path("eve", "car", "model"), value("\"Polo\""));
+        database.delete(key("bob"));
+        assertEquals(JsonParser.parseString("{\"ann\":{\"car\":{\"model\":\"Mini\"}}}"),
+                database.find(path("car", "model"), new JsonPrimitive("Mini")).getValue());
+        assertEquals(0, database.find(path("car", "model"), new JsonPrimitive("Golf")).getValue().getAsJsonObject().size());
+        database.close();
+
+        Database recovered = open(directory, Constants.STORAGE_SNAPSHOT, Collections.singletonList("car.model"));
+        assertEquals(JsonParser.parseString("{\"eve\":{\"car\":{\"model\":\"Polo\"}}}"),
+                recovered.find(path("car", "model"), new JsonPrimitive("Polo")).getValue());
+        assertEquals(Constants.NEGATIVE, recovered.find(path("car", "year"), new JsonPrimitive(1)).getCode());
+        recovered.close();
+    }
+
+    @Test
+    public void neverPublishesChangeWhoseRecordFailed() throws IOException {
+        Path storageDirectory = Files.createDirectory(directory.resolve("failing"));
+        Database database = open(storageDirectory, Constants.STORAGE_SNAPSHOT);
+        assertEquals(Constants.POSITIVE, database.set(key("before"), value("1")));
+        Path moved = Files.move(storageDirectory, directory.resolve("moved"));
+        // a file where the directory was, so neither the log nor the snapshots can create anything in it
+        Files.createFile(storageDirectory);
+        try {
+            database.snapshot();
+        } catch (IOException expected) {
+        }
+        assertEquals(Constants.ERROR, database.set(key("failed"), value("2")));
+        assertNull(database.get(key("failed")));
+        List<Database.Result> results = database.batch(JsonParser.parseString(
+                "[{\"type\":\"set\",\"key\":\"batched\",\"value\":3},{\"type\":\"get\",\"key\":\"before\"}]")
+                .getAsJsonArray());
+        assertEquals(Constants.ERROR, results.get(0).getCode());
+        assertEquals(new JsonPrimitive(1), results.get(1).getValue());
+        assertNull(database.get(key("batched")));
+
+        Files.delete(storageDirectory);
+        Files.move(moved, storageDirectory);
+        database.snapshot();
+        assertEquals(Constants.POSITIVE, database.set(key("after"), value("4")));
+        database.close();
+
+        Database recovered = open(storageDirectory, Constants.STORAGE_SNAPSHOT);
+        assertEquals(new JsonPrimitive(1), recovered.get(key("before")));
+        assertNull(recovered.get(key("failed")));
+        assertNull(recovered.get(key("batched")));
+        assertEquals(new JsonPrimitive(4), recovered.get(key("after")));
+        recovered.close();
+    }
+
+    @Test
+    public void scansPrefixPageByPage() throws IOException {
+        Database database = open(directory, Constants.STORAGE_SNAPSHOT);
+        for (int i = 0; i < 20; i++) {
+            database.set(key(String.format("a%02d", i)), value(String.valueOf(i)));
+        }
+        database.set(key("b00"), value("0"));
+        database.set(key("0"), value("0"));
+
+        Database.Page first = database.scan(key("a"), null, null, new JsonPrimitive(10), null);
+        assertEquals(keysFrom("a", 0, 10), keysOf(first));
+        assertEquals(new JsonPrimitive(3), first.getEntries().get("a03"));
+        assertEquals("a09", first.getCursor());
+        // the last page is full, but the next key is past the prefix, so there is no page after it
+        Database.Page second = database.scan(key("a"), null, null, new JsonPrimitive(10), key(first.getCursor()));
+        assertEquals(keysFrom("a", 10, 20), keysOf(second));
+        assertNull(second.getCursor());
+        database.close();
+    }
+
+    @Test
+    public void scansRangeWithExclusiveUpperBound() throws IOException {
+        Database database = open(directory, Constants.STORAGE_SNAPSHOT);
+        for (int i = 0; i < 20; i++) {
+            database.set(key(String.format("a%02d", i)), value(String.valueOf(i)));
+        }
+        List<String> scanned = new ArrayList<>();
+        JsonElement cursor = null;
+        int pages = 0;
+        do {
+            Database.Page page = database.scan(null, key("a05"), key("a15"), new JsonPrimitive(4), cursor);
+            scanned.addAll(keysOf(page));
+            cursor = page.getCursor() != null ? key(page.getCursor()) : null;
+            pages++;
+        } while (cursor != null);
+        assertEquals(keysFrom("a", 5, 15), scanned);
+        assertEquals(3, pages);
+
+        // a cursor below the lower bound starts at the bound, one past the last key ends the scan
+        assertEquals(keysFrom("a", 5, 9), keysOf(database.scan(null, key("a05"), null, new JsonPrimitive(4), key("0"))));
+        assertEquals(Collections.emptyList(), keysOf(database.scan(null, null, null, null, key("a19"))));
+        // the last page holds exactly the last keys, with nothing behind them
+        Database.Page last = database.scan(null, key("a16"), null, new JsonPrimitive(4), null);
+        assertEquals(keysFrom("a", 16, 20), keysOf(last));
+        assertNull(last.getCursor());
+        database.close();
+    }
+
+    @Test
+    public void scanContinuesAfterCursorDeletedBetweenPages() throws IOException {
+        Database database = open(directory, Constants.STORAGE_SNAPSHOT);
+        for (int i = 0; i < 10; i++) {
+            database.set(key(String.format("a%02d", i)), value(String.valueOf(i)));
+        }
+        Database.Page first = database.scan(key("a"), null, null, new JsonPrimitive(4), null);
+        assertEquals("a03", first.getCursor());
+        database.delete(key("a03"));
+        database.delete(key("a04"));
+        database.set(key("a035"), value("35"));
+        Database.Page second = database.scan(key("a"), null, null, new JsonPrimitive(4), key(first.getCursor()));
+        assertEquals(List.of("a035", "a05", "a06", "a07"), keysOf(second));
+        assertEquals("a07", second.getCursor());
+        database.close();
+    }
+
+    @Test
+    public void scanRejectsMalformedArguments() throws IOException {
+        Database database = open(directory, Constants.STORAGE_SNAPSHOT);
+        database.set(key("a"), value("1"));
+        assertNull(database.scan(null, null, null, new JsonPrimitive(0), null));
+        assertNull(database.scan(null, null, null, new JsonPrimitive(-1), null));
+        assertNull(database.scan(null, null, null, new JsonPrimitive(Constants.MAX_SCAN_LIMIT + 1), null));
+        assertNull(database.scan(null, null, null, new JsonPrimitive("10"), null));
+        assertNull(database.scan(path("a"), null, null, null, null));
+        assertEquals(List.of("a"), keysOf(database.scan(null, null, null, new JsonPrimitive(Constants.MAX_SCAN_LIMIT), null)));
+        database.close();
+    }
+
+    private static List<String> keysOf(Database.Page page) {
+        return new ArrayList<>(page.getEntries().keySet());
+    }
+
+    private static List<String> keysFrom(String prefix, int from, int to) {
+        List<String> keys = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            keys.add(String.format("%s%02d", prefix, i));
+        }
+        return keys;
+    }
+
+    private static Database open(Path directory, String storage) throws IOException {
+        return open(directory, storage, Collections.emptyList());
+    }
+
+    static Database open(Path directory, String storage, List<String> indexes) throws IOException {
+        return Database.open(directory.toString(), directory.resolve("seed.json").toString(), storage, indexes, 0,
+                new Metrics(new SlowLog(-1, 1, null)));
+    }
+
+    static JsonElement key(String key) {
+        return new JsonPrimitive(key);
+    }
+
+    static JsonElement path(String... segments) {
+        JsonArray path = new JsonArray();
+        for (String segment : segments) {
+            path.add(segment);
+        }
+        return path;
+    }
+
+    static JsonValue value(String json) {
+        return JsonValue.parsed(JsonParser.parseString(json));
+    }
+}
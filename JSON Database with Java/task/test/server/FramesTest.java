@@ -0,0 +1,83 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FramesTest {
+
+    @Test
+    public void encodesLengthAndBody() throws IOException {
+        ByteBuffer frame = Frames.encode(JsonParser.parseString("{\"response\":\"OK\",\"value\":\"é\"}"));
+        assertEquals("{\"response\":\"OK\",\"value\":\"é\"}", bodyOf(frame));
+    }
+
+    @Test
+    public void dropsWhatFailedResponseLeftBehind() throws IOException {
+        JsonArray failing = new JsonArray();
+        failing.add("left behind");
+        failing.add(new JsonPrimitive(new UnprintableNumber()));
+        try {
+            Frames.encode(failing);
+            fail("The number was serialized");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals("{\"response\":\"OK\"}", bodyOf(Frames.encode(JsonParser.parseString("{\"response\":\"OK\"}"))));
+    }
+
+    @Test
+    public void answersTooLargeResponseWithError() throws IOException {
+        JsonObject response = new JsonObject();
+        response.addProperty("response", "OK");
+        response.addProperty("value", "x".repeat(Constants.MAX_FRAME_SIZE));
+        response.addProperty("id", 7);
+        assertEquals(JsonParser.parseString("{\"response\":\"ERROR\",\"reason\":\"Response too large\",\"id\":7}"),
+                JsonParser.parseString(bodyOf(Frames.encode(response))));
+        assertEquals("{\"response\":\"OK\"}", bodyOf(Frames.encode(JsonParser.parseString("{\"response\":\"OK\"}"))));
+    }
+
+    private static String bodyOf(ByteBuffer frame) {
+        int length = frame.getInt();
+        assertEquals(frame.remaining(), length);
+        byte[] body = new byte[length];
+        frame.get(body);
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    private static class UnprintableNumber extends Number {
+
+        @Override
+        public int intValue() {
+            return 0;
+        }
+
+        @Override
+        public long longValue() {
+            return 0;
+        }
+
+        @Override
+        public float floatValue() {
+            return 0;
+        }
+
+        @Override
+        public double doubleValue() {
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            throw new IllegalStateException("Cannot be printed");
+        }
+    }
+}
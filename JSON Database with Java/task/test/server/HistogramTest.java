@@ -0,0 +1,46 @@
+package server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void keepsSmallLatenciesExact() {
+        Histogram histogram = new Histogram();
+        for (int nanos = 1; nanos <= 50; nanos++) {
+            histogram.record(nanos);
+        }
+        assertEquals(50, histogram.getCount());
+        assertEquals(25, histogram.percentile(50));
+        assertEquals(50, histogram.percentile(99));
+    }
+
+    @Test
+    public void keepsPercentilesWithinTheWidthOfABucket() {
+        Histogram histogram = new Histogram();
+        for (long nanos = 1; nanos <= 100_000; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+        assertNear(50_000_000, histogram.percentile(50));
+        assertNear(99_000_000, histogram.percentile(99));
+        assertNear(99_900_000, histogram.percentile(99.9));
+        assertEquals(100_000_000, histogram.percentile(100));
+    }
+
+    @Test
+    public void reportsMicroseconds() {
+        Histogram histogram = new Histogram();
+        histogram.record(2_000);
+        histogram.record(4_000);
+        assertEquals(2, histogram.toJson().get("count").getAsLong());
+        assertEquals(3, histogram.toJson().get("mean").getAsLong());
+        assertEquals(4, histogram.toJson().get("max").getAsLong());
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(expected + " but was " + actual, actual >= expected && actual <= expected * 1.032);
+    }
+}
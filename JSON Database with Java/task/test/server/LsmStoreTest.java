@@ -0,0 +1,122 @@
+package server;
+
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LsmStoreTest {
+
+    private Path directory;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("lsm");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        executor.shutdown();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void startsWithoutCheckpoint() throws IOException {
+        assertEquals(StorageEngine.NO_CHECKPOINT, new LsmStore(directory, executor).latestLsn());
+    }
+
+    @Test
+    public void loadsCheckpointsAcrossRestarts() throws IOException {
+        LsmStore store = new LsmStore(directory, executor);
+        store.load();
+        PersistentMap<String, JsonValue> document = PersistentMap.empty();
+        for (int i = 0; i < 500; i++) {
+            document = document.put("key" + i, value("{\"n\":" + i + "}"));
+        }
+        store.write(10, document);
+        document = document.remove("key7").put("key8", value("\"changed\""));
+        store.write(20, document);
+        store.close();
+
+        store = new LsmStore(directory, executor);
+        assertEquals(20, store.latestLsn());
+        StorageEngine.Snapshot snapshot = store.load();
+        assertEquals(20, snapshot.getLsn());
+        assertEquals(PageStoreTest.contentsOf(document), PageStoreTest.contentsOf(snapshot.getDocument()));
+        store.close();
+    }
+
+    @Test
+    public void compactsTablesKeepingNewestValues() throws IOException {
+        LsmStore store = new LsmStore(directory, executor);
+        store.load();
+        PersistentMap<String, JsonValue> document = PersistentMap.empty();
+        for (int i = 0; i < 200; i++) {
+            document = document.put("key" + i, value(String.valueOf(i)));
+        }
+        long lsn = 1;
+        store.write(lsn, document);
+        for (int round = 0; round < 3 * Constants.MAX_SSTABLES; round++) {
+            document = document.put("key" + round, value("\"round " + round + "\""))
+                    .remove("key" + (100 + round)).put("added" + round, value("true"));
+            if (round % 2 == 1) {
+                // deleted in one table and set again in a later one
+                document = document.put("key" + (100 + round - 1), value("\"back\""));
+            }
+            store.write(++lsn, document);
+        }
+        store.close();
+        assertTrue(tableCount() <= Constants.MAX_SSTABLES + 1);
+
+        store = new LsmStore(directory, executor);
+        StorageEngine.Snapshot snapshot = store.load();
+        assertEquals(lsn, snapshot.getLsn());
+        assertEquals(PageStoreTest.contentsOf(document), PageStoreTest.contentsOf(snapshot.getDocument()));
+        store.close();
+    }
+
+    @Test
+    public void startsOverWhenDocumentCameFromElsewhere() throws IOException {
+        LsmStore store = new LsmStore(directory, executor);
+        store.load();
+        store.write(5, PersistentMap.<String, JsonValue>empty().put("old", value("1")));
+        store.close();
+
+        store = new LsmStore(directory, executor);
+        PersistentMap<String, JsonValue> document = PersistentMap.<String, JsonValue>empty().put("new", value("2"));
+        store.write(9, document);
+        store.close();
+
+        store = new LsmStore(directory, executor);
+        assertEquals(PageStoreTest.contentsOf(document), PageStoreTest.contentsOf(store.load().getDocument()));
+        store.close();
+    }
+
+    private long tableCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".sst")).count();
+        }
+    }
+
+    private static JsonValue value(String json) {
+        return JsonValue.parsed(JsonParser.parseString(json));
+    }
+}
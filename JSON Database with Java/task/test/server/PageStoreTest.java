@@ -0,0 +1,103 @@
+package server;
+
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class PageStoreTest {
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("pages");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void startsWithoutCheckpoint() throws IOException {
+        assertEquals(StorageEngine.NO_CHECKPOINT, new PageStore(directory).latestLsn());
+    }
+
+    @Test
+    public void loadsCheckpointsAcrossRestarts() throws IOException {
+        PersistentMap<String, JsonValue> document = PersistentMap.empty();
+        document = document.put("small", value("1")).put("large", value("\"" + "x".repeat(20_000) + "\""))
+                .put("nested", value("{\"a\":{\"b\":[1,2,3]}}"));
+        PageStore store = new PageStore(directory);
+        store.load();
+        store.write(3, document);
+        store.close();
+
+        store = new PageStore(directory);
+        assertEquals(3, store.latestLsn());
+        StorageEngine.Snapshot snapshot = store.load();
+        assertEquals(3, snapshot.getLsn());
+        assertEquals(contentsOf(document), contentsOf(snapshot.getDocument()));
+
+        document = snapshot.getDocument().remove("large").put("small", value("2"))
+                .put("added", value("\"" + "y".repeat(9_000) + "\""));
+        store.write(7, document);
+        document = document.remove("nested");
+        store.write(9, document);
+        store.close();
+
+        store = new PageStore(directory);
+        snapshot = store.load();
+        assertEquals(9, snapshot.getLsn());
+        assertEquals(contentsOf(document), contentsOf(snapshot.getDocument()));
+        store.close();
+    }
+
+    @Test
+    public void startsOverWhenDocumentCameFromElsewhere() throws IOException {
+        PageStore store = new PageStore(directory);
+        store.load();
+        store.write(5, PersistentMap.<String, JsonValue>empty().put("old", value("1")).put("kept", value("2")));
+        store.close();
+
+        // written on top of a checkpoint of another engine, without loading this one first
+        store = new PageStore(directory);
+        PersistentMap<String, JsonValue> document = PersistentMap.<String, JsonValue>empty().put("kept", value("3"));
+        store.write(12, document);
+        document = document.put("added", value("4"));
+        store.write(13, document);
+        store.close();
+
+        store = new PageStore(directory);
+        StorageEngine.Snapshot snapshot = store.load();
+        assertEquals(13, snapshot.getLsn());
+        assertEquals(contentsOf(document), contentsOf(snapshot.getDocument()));
+        store.close();
+    }
+
+    private static JsonValue value(String json) {
+        return JsonValue.parsed(JsonParser.parseString(json));
+    }
+
+    static Map<String, String> contentsOf(PersistentMap<String, JsonValue> document) {
+        Map<String, String> contents = new HashMap<>();
+        document.forEach((key, value) -> contents.put(key, value.get().toString()));
+        return contents;
+    }
+}
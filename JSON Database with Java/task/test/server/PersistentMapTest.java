@@ -0,0 +1,125 @@
+package server;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PersistentMapTest {
+
+    @Test
+    public void putsAndRemoves() {
+        PersistentMap<String, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 1000; i++) {
+            map = map.put("key" + i, i);
+        }
+        assertEquals(1000, map.size());
+        for (int i = 0; i < 1000; i += 2) {
+            map = map.remove("key" + i);
+        }
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), map.get("key" + i));
+        }
+    }
+
+    @Test
+    public void leavesEarlierVersionsUnchanged() {
+        PersistentMap<String, Integer> first = PersistentMap.<String, Integer>empty().put("a", 1).put("b", 2);
+        PersistentMap<String, Integer> second = first.put("a", 3).remove("b").put("c", 4);
+        assertEquals(Integer.valueOf(1), first.get("a"));
+        assertEquals(Integer.valueOf(2), first.get("b"));
+        assertNull(first.get("c"));
+        assertEquals(2, first.size());
+        assertEquals(Integer.valueOf(3), second.get("a"));
+        assertNull(second.get("b"));
+        assertEquals(2, second.size());
+    }
+
+    @Test
+    public void returnsSameMapWhenNothingChanges() {
+        Integer value = 1;
+        PersistentMap<String, Integer> map = PersistentMap.<String, Integer>empty().put("a", value);
+        assertSame(map, map.put("a", value));
+        assertSame(map, map.remove("b"));
+    }
+
+    @Test
+    public void keepsKeysWithTheSameHash() {
+        // "Aa" and "BB" share their hash code, as do all their concatenations
+        PersistentMap<String, String> map = PersistentMap.empty();
+        String[] keys = {"AaAa", "AaBB", "BBAa", "BBBB"};
+        for (String key : keys) {
+            map = map.put(key, key.toLowerCase());
+        }
+        assertEquals(4, map.size());
+        for (String key : keys) {
+            assertEquals(key.toLowerCase(), map.get(key));
+        }
+        map = map.put("AaBB", "changed").remove("BBAa");
+        assertEquals(3, map.size());
+        assertEquals("changed", map.get("AaBB"));
+        assertNull(map.get("BBAa"));
+        map = map.remove("AaAa").remove("BBBB");
+        assertEquals(1, map.size());
+        assertEquals("changed", map.get("AaBB"));
+        assertEquals(0, map.remove("AaBB").size());
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomChanges() {
+        Random random = new Random(42);
+        Map<Key, Integer> expected = new HashMap<>();
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 50_000; i++) {
+            // few distinct hashes, so most keys collide fully or share long hash prefixes
+            Key key = new Key(random.nextInt(2000), random.nextInt(64) << random.nextInt(27));
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, i);
+                map = map.put(key, i);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Key, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        Map<Key, Integer> iterated = new HashMap<>();
+        for (Map.Entry<Key, Integer> entry : map) {
+            iterated.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(expected, iterated);
+        Map<Key, Integer> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+
+    private static class Key {
+
+        private final int id;
+
+        private final int hash;
+
+        Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).id == id && ((Key) other).hash == hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
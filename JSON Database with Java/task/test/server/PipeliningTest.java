@@ -0,0 +1,172 @@
+package server;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class PipeliningTest {
+
+    @Test
+    public void answersPipelinedRequestsByIdOnNio() throws IOException {
+        answersPipelinedRequestsById(Constants.ENGINE_NIO);
+    }
+
+    @Test
+    public void answersPipelinedRequestsByIdOnPool() throws IOException {
+        answersPipelinedRequestsById(Constants.ENGINE_POOL);
+    }
+
+    /**
+     * Sends reads with ids in no particular order around writes, all without waiting, and checks every
+     * response by its id: reads see exactly the writes sent before them, whatever order they are answered in.
+     */
+    private static void answersPipelinedRequestsById(String engine) throws IOException {
+        try (TestServer server = TestServer.start("-engine", engine);
+             Socket socket = new Socket(Constants.ADDRESS, server.getPort())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Map<String, String> expected = new HashMap<>();
+            int[] ids = {900, 17, 503, 2, 88, 41, 1000, 3};
+            int sent = 0;
+            for (int round = 0; round < 3; round++) {
+                String setId = "set-" + round;
+                send(out, "{\"type\":\"set\",\"key\":\"key\",\"value\":" + round + ",\"id\":\"" + setId + "\"}");
+                expected.put(setId, "{\"response\":\"OK\",\"id\":\"" + setId + "\"}");
+                sent++;
+                for (int id : ids) {
+                    int readId = id * 10 + round;
+                    send(out, "{\"type\":\"get\",\"key\":\"key\",\"id\":" + readId + "}");
+                    expected.put(String.valueOf(readId), "{\"response\":\"OK\",\"value\":" + round + ",\"id\":" + readId + "}");
+                    sent++;
+                }
+            }
+            out.flush();
+            Map<String, String> received = new HashMap<>();
+            for (int i = 0; i < sent; i++) {
+                JsonObject response = JsonParser.parseString(receive(in)).getAsJsonObject();
+                String id = response.get("id").getAsString();
+                assertFalse("Answered twice: " + id, received.containsKey(id));
+                received.put(id, response.toString());
+            }
+            Map<String, String> normalized = new HashMap<>();
+            expected.forEach((id, response) -> normalized.put(id, JsonParser.parseString(response).toString()));
+            assertEquals(normalized, received);
+
+            send(out, "{\"type\":\"get\",\"key\":\"key\"}");
+            out.flush();
+            assertEquals("{\"response\":\"OK\",\"value\":2}", receive(in));
+        }
+    }
+
+    @Test
+    public void answersRequestsWithoutTypeAmongPipelinedOnesOnNio() throws IOException {
+        answersRequestsWithoutTypeAmongPipelinedOnes(Constants.ENGINE_NIO);
+    }
+
+    @Test
+    public void answersRequestsWithoutTypeAmongPipelinedOnesOnPool() throws IOException {
+        answersRequestsWithoutTypeAmongPipelinedOnes(Constants.ENGINE_POOL);
+    }
+
+    /**
+     * Sends requests without a type, with a type that is no string and of an unknown type between valid
+     * ones: each of them is answered as invalid, and the connection goes on answering the others.
+     */
+    private static void answersRequestsWithoutTypeAmongPipelinedOnes(String engine) throws IOException {
+        try (TestServer server = TestServer.start("-engine", engine);
+             Socket socket = new Socket(Constants.ADDRESS, server.getPort())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            send(out, "{\"type\":\"set\",\"key\":\"key\",\"value\":1,\"id\":1}");
+            send(out, "{\"type\":\"get\",\"key\":\"key\",\"id\":2}");
+            send(out, "{\"key\":\"key\",\"id\":3}");
+            send(out, "{\"type\":{},\"key\":\"key\",\"id\":4}");
+            send(out, "{\"type\":\"unknown\",\"key\":\"key\",\"id\":5}");
+            send(out, "{\"type\":\"set\",\"key\":\"key\",\"value\":2,\"id\":6}");
+            send(out, "{\"type\":\"get\",\"key\":\"key\",\"id\":7}");
+            out.flush();
+            Map<String, String> received = new HashMap<>();
+            for (int i = 0; i < 7; i++) {
+                JsonObject response = JsonParser.parseString(receive(in)).getAsJsonObject();
+                received.put(response.remove("id").getAsString(), response.toString());
+            }
+            String invalid = "{\"response\":\"ERROR\",\"reason\":\"Invalid arguments\"}";
+            Map<String, String> expected = new HashMap<>();
+            expected.put("1", "{\"response\":\"OK\"}");
+            expected.put("2", "{\"response\":\"OK\",\"value\":1}");
+            expected.put("3", invalid);
+            expected.put("4", invalid);
+            expected.put("5", invalid);
+            expected.put("6", "{\"response\":\"OK\"}");
+            expected.put("7", "{\"response\":\"OK\",\"value\":2}");
+            assertEquals(expected, received);
+        }
+    }
+
+    @Test
+    public void answersRequestsBeforeUndecodableFrameOnNio() throws IOException {
+        answersRequestsBeforeUndecodableFrame(Constants.ENGINE_NIO);
+    }
+
+    @Test
+    public void answersRequestsBeforeUndecodableFrameOnPool() throws IOException {
+        answersRequestsBeforeUndecodableFrame(Constants.ENGINE_POOL);
+    }
+
+    /**
+     * Sends a frame that is no JSON right behind many pipelined requests: the connection is closed
+     * because of it, but only after every request sent before it has been answered.
+     */
+    private static void answersRequestsBeforeUndecodableFrame(String engine) throws IOException {
+        try (TestServer server = TestServer.start("-engine", engine);
+             Socket socket = new Socket(Constants.ADDRESS, server.getPort())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            String value = "\"" + "x".repeat(100_000) + "\"";
+            send(out, "{\"type\":\"set\",\"key\":\"key\",\"value\":" + value + ",\"id\":0}");
+            int sent = 100;
+            for (int id = 1; id < sent; id++) {
+                send(out, "{\"type\":\"get\",\"key\":\"key\",\"id\":" + id + "}");
+            }
+            send(out, "{not json");
+            out.flush();
+            Set<Integer> answered = new HashSet<>();
+            for (int i = 0; i < sent; i++) {
+                JsonObject response = JsonParser.parseString(receive(in)).getAsJsonObject();
+                assertEquals("OK", response.get("response").getAsString());
+                answered.add(response.get("id").getAsInt());
+            }
+            assertEquals(sent, answered.size());
+            try {
+                in.readInt();
+                fail("Expected the connection to be closed");
+            } catch (EOFException | SocketException expected) {
+            }
+        }
+    }
+
+    private static void send(DataOutputStream out, String request) throws IOException {
+        byte[] body = request.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    private static String receive(DataInputStream in) throws IOException {
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return new String(body, StandardCharsets.UTF_8);
+    }
+}
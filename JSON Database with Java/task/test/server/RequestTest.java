@@ -0,0 +1,44 @@
+package server;
+
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class RequestTest {
+
+    @Test
+    public void decodesEnvelopeAndKeepsValueRaw() {
+        Request request = decode("{\"type\":\"set\", \"key\":[\"a\",\"b\"], \"value\":{\"x\":[1,2]}, \"id\":7}");
+        assertEquals("set", request.getType());
+        assertEquals(JsonParser.parseString("[\"a\",\"b\"]"), request.get("key"));
+        assertEquals(new JsonPrimitive(7), request.get("id"));
+        assertFalse(request.getValue().isDecoded());
+        assertEquals(JsonParser.parseString("{\"x\":[1,2]}"), request.getValue().get());
+    }
+
+    @Test
+    public void unescapesMemberNames() {
+        Request request = decode("{\"typ\\u0065\":\"get\",\"k\\\"ey\":\"a\"}");
+        assertEquals("get", request.getType());
+        assertEquals(new JsonPrimitive("a"), request.get("k\"ey"));
+    }
+
+    @Test
+    public void decodesMembersLargerThanAString() {
+        String key = "k".repeat(20_000);
+        String value = "é".repeat(20_000);
+        Request request = decode("{\"type\":\"set\",\"key\":\"" + key + "\",\"value\":\"" + value + "\"}");
+        assertEquals(new JsonPrimitive(key), request.get("key"));
+        assertEquals(new JsonPrimitive(value), request.getValue().get());
+    }
+
+    private static Request decode(String request) {
+        byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+        return Request.decode(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,74 @@
+package server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SecondaryIndexTest {
+
+    private final SecondaryIndex index = new SecondaryIndex(Arrays.asList("car", "model"));
+
+    @Test
+    public void findsElementWithoutDecodingValue() {
+        JsonValue value = raw("{\"name\":\"Ann\",\"car\":{\"year\":2020,\"model\":{\"name\":\"Mini\"},\"seats\":[1,2]}}");
+        assertEquals(JsonParser.parseString("{\"name\":\"Mini\"}"), index.elementOf(value));
+        assertFalse(value.isDecoded());
+    }
+
+    @Test
+    public void findsElementOfDecodedValue() {
+        JsonValue value = JsonValue.parsed(JsonParser.parseString("{\"car\":{\"model\":\"Mini\"}}"));
+        assertEquals(new JsonPrimitive("Mini"), index.elementOf(value));
+    }
+
+    @Test
+    public void findsNothingOffThePath() {
+        assertNull(index.elementOf(raw("{\"car\":{\"year\":2020}}")));
+        assertNull(index.elementOf(raw("{\"car\":\"Mini\",\"model\":1}")));
+        assertNull(index.elementOf(raw("{\"car\":[{\"model\":\"Mini\"}]}")));
+        assertNull(index.elementOf(raw("\"car\"")));
+        assertNull(index.elementOf(JsonValue.parsed(JsonParser.parseString("{\"car\":[]}"))));
+    }
+
+    @Test
+    public void takesLastOfRepeatedMembers() {
+        JsonValue value = raw("{\"car\":{\"model\":\"Mini\"},\"car\":{\"model\":\"Golf\",\"model\":\"Polo\"}}");
+        assertEquals(JsonValue.parsed(value.get()).elementAt(Arrays.asList("car", "model")), index.elementOf(value));
+        assertEquals(new JsonPrimitive("Polo"), index.elementOf(raw(value.toString())));
+        assertNull(index.elementOf(raw("{\"car\":{\"model\":\"Mini\"},\"car\":1}")));
+    }
+
+    @Test
+    public void findsWholeValueAtEmptyPath() {
+        JsonValue value = raw("[1,{\"a\":2}]");
+        assertEquals(JsonParser.parseString("[1,{\"a\":2}]"), value.elementAt(Collections.emptyList()));
+    }
+
+    @Test
+    public void matchesEqualNumbersWrittenDifferently() {
+        JsonElement price = index.elementOf(raw("{\"car\":{\"model\":12.50}}"));
+        index.add("first", price);
+        index.add("second", new JsonPrimitive(12.5));
+        Set<String> candidates = index.candidatesOf(new JsonPrimitive(12.5));
+        assertEquals(2, candidates.size());
+        index.remove("first", price);
+        assertTrue(index.candidatesOf(JsonParser.parseString("12.500")).contains("second"));
+        assertEquals(1, index.candidatesOf(JsonParser.parseString("12.500")).size());
+    }
+
+    private static JsonValue raw(String json) {
+        byte[] bytes = ("  " + json + "  ").getBytes(StandardCharsets.UTF_8);
+        return JsonValue.raw(bytes, 1, bytes.length - 2);
+    }
+}
@@ -0,0 +1,129 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlowLogTest {
+
+    @Test
+    public void keepsRequestsFromTheThresholdOn() {
+        SlowLog slowLog = new SlowLog(1000, 8, null);
+        slowLog.offer(request("fast"), stagesTaking(999_999));
+        slowLog.offer(request("slow"), stagesTaking(1_000_000));
+        JsonArray latest = slowLog.latest(8);
+        assertEquals(1, latest.size());
+        assertEquals("slow", latest.get(0).getAsJsonObject().get("key").getAsString());
+    }
+
+    @Test
+    public void keepsNothingWithNegativeThreshold() {
+        SlowLog slowLog = new SlowLog(-1, 8, null);
+        slowLog.offer(request("key"), stagesTaking(Long.MAX_VALUE));
+        assertEquals(0, slowLog.latest(8).size());
+    }
+
+    @Test
+    public void keepsTheLatestEntriesNewestFirst() {
+        SlowLog slowLog = new SlowLog(0, 4, null);
+        for (int i = 0; i < 10; i++) {
+            slowLog.offer(request("key" + i), stagesTaking(1000));
+        }
+        JsonArray latest = slowLog.latest(100);
+        assertEquals(4, latest.size());
+        for (int i = 0; i < 4; i++) {
+            JsonObject entry = latest.get(i).getAsJsonObject();
+            assertEquals("key" + (9 - i), entry.get("key").getAsString());
+            assertEquals(9 - i, entry.get("id").getAsLong());
+        }
+        JsonArray limited = slowLog.latest(2);
+        assertEquals(2, limited.size());
+        assertEquals("key9", limited.get(0).getAsJsonObject().get("key").getAsString());
+        assertEquals("key8", limited.get(1).getAsJsonObject().get("key").getAsString());
+    }
+
+    @Test
+    public void appendsEntriesToFile() throws IOException, InterruptedException {
+        Path file = Files.createTempFile("slowlog", ".json");
+        try {
+            SlowLog slowLog = new SlowLog(0, 4, file.toString());
+            slowLog.offer(request("first"), stagesTaking(1000));
+            slowLog.offer(request("second"), stagesTaking(1000));
+            slowLog.close();
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            assertEquals(2, lines.size());
+            assertEquals("first", JsonParser.parseString(lines.get(0)).getAsJsonObject().get("key").getAsString());
+            assertEquals("second", JsonParser.parseString(lines.get(1)).getAsJsonObject().get("key").getAsString());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Runs a set against a database recording into the metrics while the request is marked as handled,
+     * as the workers do, so the wait for the lock and for the log recorded deep in the database end up
+     * on the entry of the request along with the stages recorded around it.
+     */
+    @Test
+    public void breaksEntryDownIntoStagesRecordedByDatabase() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("database");
+        SlowLog slowLog = new SlowLog(0, 4, null);
+        Metrics metrics = new Metrics(slowLog);
+        Database database = Database.open(directory.toString(), directory.resolve("seed.json").toString(),
+                Constants.STORAGE_SNAPSHOT, List.of(), 0, metrics);
+        try {
+            Request request = request("key").received(System.nanoTime(), 42);
+            metrics.handling(request);
+            try {
+                assertEquals(Constants.POSITIVE, database.set(request.get("key"), request.getValue()));
+            } finally {
+                metrics.handling(null);
+            }
+            long serializing = System.nanoTime();
+            metrics.recordResponse(request, serializing, System.nanoTime());
+
+            JsonArray latest = slowLog.latest(4);
+            assertEquals(1, latest.size());
+            JsonObject entry = latest.get(0).getAsJsonObject();
+            assertEquals("set", entry.get("type").getAsString());
+            assertEquals(42, entry.get("size").getAsInt());
+            JsonObject stages = entry.getAsJsonObject("stages");
+            assertTrue(stages.toString(), stages.has("lock"));
+            assertTrue(stages.toString(), stages.has("persist"));
+            assertTrue(stages.toString(), stages.has("total"));
+            assertTrue(stages.get("total").getAsLong() >= stages.get("persist").getAsLong());
+        } finally {
+            database.close();
+            slowLog.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static Request request(String key) {
+        byte[] bytes = ("{\"type\":\"set\",\"key\":\"" + key + "\",\"value\":1}").getBytes(StandardCharsets.UTF_8);
+        return Request.decode(bytes, 0, bytes.length);
+    }
+
+    private static long[] stagesTaking(long totalNanos) {
+        long[] stages = new long[Metrics.Stage.values().length];
+        stages[Metrics.Stage.TOTAL.ordinal()] = totalNanos;
+        return stages;
+    }
+}
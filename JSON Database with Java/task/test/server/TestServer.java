@@ -0,0 +1,90 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the server on a free port and a data directory of its own for a test. Only one server
+ * can run at a time, since the server keeps its state in static fields.
+ */
+public class TestServer implements Closeable {
+
+    private final Path directory;
+
+    private final int port;
+
+    private final Thread thread;
+
+    private TestServer(Path directory, int port, Thread thread) {
+        this.directory = directory;
+        this.port = port;
+        this.thread = thread;
+    }
+
+    /**
+     * Starts the server with the arguments and returns once it accepts connections.
+     */
+    public static TestServer start(String... arguments) throws IOException {
+        Path directory = Files.createTempDirectory("server");
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        List<String> args = new ArrayList<>(Arrays.asList(arguments));
+        args.addAll(Arrays.asList("-port", String.valueOf(port), "-dataDirectory", directory.toString()));
+        Thread thread = new Thread(() -> Main.main(args.toArray(new String[0])), "test-server");
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket ignored = new Socket(Constants.ADDRESS, port)) {
+                return new TestServer(directory, port, thread);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || !thread.isAlive()) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Shuts the server down, waits for it to close the database and deletes its data.
+     */
+    @Override
+    public void close() throws IOException {
+        Main.shutdownServer();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
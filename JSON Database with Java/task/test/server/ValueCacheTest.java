@@ -0,0 +1,146 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ValueCacheTest {
+
+    @After
+    public void dropCache() {
+        JsonValue.useCache(new ValueCache(0));
+    }
+
+    @Test
+    public void keepsEveryValueDecodedWithoutBudget() {
+        ValueCache cache = new ValueCache(0);
+        JsonValue.useCache(cache);
+        List<JsonValue> values = values(100);
+        for (JsonValue value : values) {
+            value.get();
+            value.get();
+        }
+        assertEquals(100, decodedCount(values));
+        assertEquals(100, cache.getMisses());
+        assertEquals(100, cache.getHits());
+    }
+
+    @Test
+    public void staysWithinBudget() {
+        List<JsonValue> values = values(1000);
+        long budget = 20L * values.get(0).weight();
+        ValueCache cache = new ValueCache(budget);
+        JsonValue.useCache(cache);
+        for (JsonValue value : values) {
+            value.get();
+        }
+        assertTrue(cache.getWeight() <= budget);
+        assertEquals(decodedWeight(values), cache.getWeight());
+        assertTrue(decodedCount(values) < values.size());
+    }
+
+    @Test
+    public void decodesEvictedValueAgainAsMiss() {
+        List<JsonValue> values = values(1000);
+        ValueCache cache = new ValueCache(10L * values.get(0).weight());
+        JsonValue.useCache(cache);
+        JsonValue first = values.get(0);
+        first.get();
+        for (JsonValue value : values.subList(1, values.size())) {
+            // used more often than the first one, so they win its place
+            value.get();
+            value.get();
+            value.get();
+        }
+        assertFalse(first.isDecoded());
+        long misses = cache.getMisses();
+        assertEquals(JsonParser.parseString("{\"n\":0,\"name\":\"value 0\"}"), first.get());
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(new JsonPrimitive("value 0"), first.find(path("name")));
+    }
+
+    @Test
+    public void keepsFrequentValueThroughScan() {
+        List<JsonValue> values = values(2000);
+        ValueCache cache = new ValueCache(200L * values.get(0).weight());
+        JsonValue.useCache(cache);
+        JsonValue hot = values.get(0);
+        for (int i = 0; i < 10; i++) {
+            hot.get();
+        }
+        for (JsonValue value : values.subList(1, values.size())) {
+            value.get();
+            hot.get();
+        }
+        assertTrue(hot.isDecoded());
+    }
+
+    @Test
+    public void countsEveryDecodedValueUnderConcurrentUse() throws Exception {
+        List<JsonValue> values = values(500);
+        ValueCache cache = new ValueCache(50L * values.get(0).weight());
+        JsonValue.useCache(cache);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> runs = new ArrayList<>();
+        for (int thread = 0; thread < 8; thread++) {
+            int seed = thread;
+            runs.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 20_000; i++) {
+                    JsonValue value = values.get(random.nextInt(random.nextBoolean() ? 40 : values.size()));
+                    if (random.nextBoolean()) {
+                        value.find(path("name"));
+                    } else {
+                        value.get();
+                    }
+                }
+            }));
+        }
+        for (Future<?> run : runs) {
+            run.get();
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(cache.getWeight() <= cache.getCapacity());
+        assertEquals(decodedWeight(values), cache.getWeight());
+    }
+
+    private static List<JsonValue> values(int count) {
+        List<JsonValue> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = String.format("{\"n\":%d,\"name\":\"value %d\"}", i % 10, i % 10).getBytes(StandardCharsets.UTF_8);
+            values.add(JsonValue.raw(bytes, 0, bytes.length));
+        }
+        return values;
+    }
+
+    private static JsonArray path(String member) {
+        JsonArray path = new JsonArray();
+        path.add("top");
+        path.add(member);
+        return path;
+    }
+
+    private static int decodedCount(List<JsonValue> values) {
+        return (int) values.stream().filter(JsonValue::isDecoded).count();
+    }
+
+    private static long decodedWeight(List<JsonValue> values) {
+        return values.stream().filter(JsonValue::isDecoded).mapToLong(JsonValue::weight).sum();
+    }
+}
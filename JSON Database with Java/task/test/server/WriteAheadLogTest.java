@@ -0,0 +1,211 @@
+package server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteAheadLogTest {
+
+    private Path directory;
+
+    private final List<String> replayed = new ArrayList<>();
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("wal");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void replaysRecordsInLsnOrder() throws IOException {
+        try (WriteAheadLog log = open(0)) {
+            for (int i = 1; i <= 10; i++) {
+                append(log, i % 4, "record " + i);
+            }
+        }
+        try (WriteAheadLog log = open(0)) {
+            assertEquals(10, log.getLastLsn());
+        }
+        assertEquals(records(1, 10), replayed);
+    }
+
+    @Test
+    public void skipsRecordsCoveredBySnapshot() throws IOException {
+        try (WriteAheadLog log = open(0)) {
+            for (int i = 1; i <= 6; i++) {
+                append(log, i % 2, "record " + i);
+            }
+        }
+        open(4).close();
+        assertEquals(records(5, 6), replayed);
+    }
+
+    @Test
+    public void cutsOffTornTail() throws IOException {
+        try (WriteAheadLog log = open(0)) {
+            for (int i = 1; i <= 3; i++) {
+                append(log, 0, "record " + i);
+            }
+        }
+        Path segment = segments().get(0);
+        long intact = Files.size(segment);
+        // a header claiming more bytes than made it to disk
+        Files.write(segment, new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 0, 0, 0, 0, 0, 0, 0, 4, '{'},
+                StandardOpenOption.APPEND);
+        try (WriteAheadLog log = open(0)) {
+            assertEquals(3, log.getLastLsn());
+            append(log, 0, "record 4");
+        }
+        assertEquals(records(1, 3), replayed);
+        assertEquals(intact, Files.size(segment));
+
+        replayed.clear();
+        open(0).close();
+        assertEquals(records(1, 4), replayed);
+    }
+
+    @Test
+    public void stopsAtCorruptRecord() throws IOException {
+        try (WriteAheadLog log = open(0)) {
+            for (int i = 1; i <= 3; i++) {
+                append(log, 0, "record " + i);
+            }
+        }
+        Path segment = segments().get(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 2] ^= 1;
+        Files.write(segment, bytes);
+        open(0).close();
+        assertEquals(records(1, 2), replayed);
+    }
+
+    @Test
+    public void rollsOverToNewSegments() throws IOException {
+        try (WriteAheadLog log = open(0)) {
+            append(log, 0, "record 1");
+            append(log, 1, "record 2");
+            assertEquals(2, log.rollOver());
+            append(log, 0, "record 3");
+            append(log, 1, "record 4");
+            log.truncate(2);
+        }
+        for (Path segment : segments()) {
+            assertTrue(segment.getFileName().toString().endsWith("-00000000000000000003.log"));
+        }
+        open(2).close();
+        assertEquals(records(3, 4), replayed);
+    }
+
+    @Test
+    public void failsRecordsWhenNewSegmentCannotBeOpened() throws IOException {
+        try (WriteAheadLog log = open(0)) {
+            append(log, 0, "record 1");
+            deleteDirectory();
+            log.rollOver();
+            CompletableFuture<Void> durable = log.append(0, "record 2".getBytes(StandardCharsets.UTF_8));
+            try {
+                durable.join();
+                fail("The record went to the segment the roll-over left");
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            Files.createDirectories(directory);
+        }
+    }
+
+    @Test
+    public void stopsReplayAtLsnMissingFromEveryShard() throws IOException {
+        try (WriteAheadLog log = open(0)) {
+            for (int i = 1; i <= 6; i++) {
+                append(log, i % 2, "record " + i);
+            }
+        }
+        // as if the records of the other shard never made it to disk
+        Files.delete(segments().stream().filter(segment -> segment.getFileName().toString().startsWith("wal-0-"))
+                .findFirst().orElseThrow());
+        try (WriteAheadLog log = open(0)) {
+            assertEquals(5, log.getLastLsn());
+        }
+        assertEquals(records(1, 1), replayed);
+    }
+
+    @Test
+    public void takesRecordsAgainOnceCheckpointCoversFailedOne() throws IOException {
+        try (WriteAheadLog log = open(0)) {
+            append(log, 0, "record 1");
+            deleteDirectory();
+            log.rollOver();
+            CompletableFuture<Void> failed = log.append(0, "record 2".getBytes(StandardCharsets.UTF_8));
+            assertTrue(failsEventually(failed));
+            assertTrue(log.isFailed());
+            assertTrue(log.append(1, "record 3".getBytes(StandardCharsets.UTF_8)).isCompletedExceptionally());
+
+            Files.createDirectories(directory);
+            log.truncate(log.rollOver());
+            assertFalse(log.isFailed());
+            append(log, 0, "record 4");
+            append(log, 1, "record 5");
+        }
+        open(2).close();
+        assertEquals(Arrays.asList("record 4", "record 5"), replayed);
+    }
+
+    private static boolean failsEventually(CompletableFuture<Void> future) {
+        try {
+            future.join();
+            return false;
+        } catch (CompletionException e) {
+            return true;
+        }
+    }
+
+    private WriteAheadLog open(long fromLsn) throws IOException {
+        return WriteAheadLog.open(directory, fromLsn, 4, Runnable::run,
+                (lsn, payload) -> replayed.add(new String(payload, StandardCharsets.UTF_8)));
+    }
+
+    private static void append(WriteAheadLog log, int shard, String payload) {
+        log.append(shard, payload.getBytes(StandardCharsets.UTF_8)).join();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> Files.isRegularFile(file)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static List<String> records(int from, int to) {
+        List<String> records = new ArrayList<>();
+        for (int i = from; i <= to; i++) {
+            records.add("record " + i);
+        }
+        return records;
+    }
+}